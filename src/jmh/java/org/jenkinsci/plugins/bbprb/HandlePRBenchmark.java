@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.model.FreeStyleProject;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.runner.Description;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handling of a pull request event by a trigger: matching, building
+ * the cause and the parameters, and scheduling the job. The job is
+ * disabled, so that nothing is queued, and there are no credentials,
+ * so that no build status is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlePRBenchmark {
+  private static final Logger TRIGGER_LOGGER =
+      Logger.getLogger(BitbucketBuildTrigger.class.getName());
+
+  private JenkinsRule jenkins;
+  private BitbucketBuildTrigger trigger;
+  private PullRequest pr;
+  private Level level;
+
+  @Setup
+  public void setUp() throws Throwable {
+    // Started by hand: there is no test to run the rule around.
+    this.jenkins = new JenkinsRule() {
+      {
+        this.testDescription =
+            Description.createSuiteDescription(HandlePRBenchmark.class);
+      }
+    };
+    this.jenkins.before();
+
+    try (InputStream in = HandlePRBenchmark.class.getResourceAsStream(
+             "pullrequest-updated.json")) {
+      this.pr = PullRequest.parse(in);
+    }
+    FreeStyleProject project = this.jenkins.createFreeStyleProject("noop");
+    this.trigger = new BitbucketBuildTrigger(
+        null, this.pr.getDestinationRepository(), "jenkins", "Jenkins",
+        false);
+    project.addTrigger(this.trigger);
+    this.trigger.start(project, true);
+    project.disable();
+
+    // Every event logs that statuses are not sent.
+    this.level = TRIGGER_LOGGER.getLevel();
+    TRIGGER_LOGGER.setLevel(Level.WARNING);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    TRIGGER_LOGGER.setLevel(this.level);
+    this.jenkins.after();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void handleCreated() {
+    this.trigger.handlePR("pullrequest:created", this.pr);
+  }
+}
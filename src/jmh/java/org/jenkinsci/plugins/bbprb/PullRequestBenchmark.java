@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a typical web-hook payload, as JSON and as a form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PullRequestBenchmark {
+  private static final String FORM_PREFIX = "payload=";
+
+  private String payload;
+  private byte[] bytes;
+  private byte[] form;
+
+  @Setup
+  public void setUp() throws IOException {
+    try (InputStream in =
+             PullRequestBenchmark.class.getResourceAsStream(
+                 "pullrequest-updated.json")) {
+      this.bytes = IOUtils.toByteArray(in);
+    }
+    this.payload = new String(this.bytes, "UTF-8");
+    this.form = (FORM_PREFIX + URLEncoder.encode(this.payload, "UTF-8"))
+                    .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Benchmark
+  public PullRequest parseString() throws IOException {
+    return PullRequest.parse(this.payload);
+  }
+
+  /**
+   * As the web-hook receiver reads the request body.
+   */
+  @Benchmark
+  public PullRequest parseStream() throws IOException {
+    return PullRequest.parse(new ByteArrayInputStream(this.bytes));
+  }
+
+  /**
+   * As the web-hook receiver reads a form sent by older web-hooks:
+   * decoded while parsed.
+   */
+  @Benchmark
+  public PullRequest parseForm() throws IOException {
+    InputStream in = new BitbucketHookReceiver.FormDecodingInputStream(
+        new ByteArrayInputStream(this.form));
+    in.skip(FORM_PREFIX.length());
+    return PullRequest.parse(in);
+  }
+
+  @Benchmark
+  public String toJson() throws IOException {
+    return PullRequest.parse(this.payload).toJson();
+  }
+}
@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of the triggers of a repository among many triggers. Every tenth
+ * trigger has a pattern of its owner's repositories, and a few have
+ * patterns which may match any owner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TriggerRegistryBenchmark {
+  private static final int OWNERS = 100;
+
+  @Param({"10", "1000", "10000"})
+  public int triggers;
+
+  private final List<BitbucketBuildTrigger> registered = new ArrayList<>();
+  private final List<NameMatcher> matchers = new ArrayList<>();
+  private String[] repositories;
+
+  @Setup
+  public void setUp() throws Exception {
+    this.repositories = new String[this.triggers];
+    for (int i = 0; i < this.triggers; i++) {
+      String owner = "owner" + (i % OWNERS);
+      this.repositories[i] = owner + "/repo" + i;
+      String spec = this.repositories[i];
+      if (i % 10 == 0) {
+        spec += ", " + owner + "/lib-*";
+      }
+      if (i % 1000 == 0) {
+        spec += ", ^.*/mirror-" + i + "$";
+      }
+      register(spec);
+    }
+  }
+
+  private void register(String spec) throws Exception {
+    BitbucketBuildTrigger trigger =
+        new BitbucketBuildTrigger(null, spec, "jenkins", "Jenkins", false);
+    trigger.compile();
+    NameMatcher matcher = new NameMatcher(spec);
+    TriggerRegistry.register(matcher, trigger);
+    this.registered.add(trigger);
+    this.matchers.add(matcher);
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (int i = 0; i < this.registered.size(); i++) {
+      TriggerRegistry.unregister(this.matchers.get(i), this.registered.get(i));
+    }
+    this.registered.clear();
+    this.matchers.clear();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Collection<BitbucketBuildTrigger> lookupExact() {
+    return TriggerRegistry.lookup(
+        this.repositories[ThreadLocalRandom.current().nextInt(
+            this.repositories.length)]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Collection<BitbucketBuildTrigger> lookupPattern() {
+    int owner = ThreadLocalRandom.current().nextInt(OWNERS);
+    return TriggerRegistry.lookup("owner" + owner + "/lib-core");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Collection<BitbucketBuildTrigger> lookupUnknown() {
+    return TriggerRegistry.lookup("nobody/repo");
+  }
+}
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Build status keys: cached lookups against computing them every time.
+ * Long job names are hashed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiKeyBenchmark {
+  @Param({"short", "long"})
+  public String jobName;
+
+  private ApiClient client;
+  private String job;
+
+  @Setup
+  public void setUp() {
+    this.client = new ApiClient("user", "password", "jenkins", "Jenkins");
+    this.job = "short".equals(this.jobName)
+                   ? "team/app"
+                   : "team/folder/very-long-multibranch-project-name/" +
+                         "PR-1234-with-a-very-long-branch-name";
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String computeAPIKey() {
+    return this.client.buildStatusKey(this.job);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String hashAPIKey() {
+    return this.client.hashAPIKey(this.job);
+  }
+}
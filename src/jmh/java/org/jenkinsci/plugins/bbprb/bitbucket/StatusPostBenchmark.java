@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Build statuses posted through a shared client to a local stub of
+ * Bitbucket: the cost of a request over pooled connections, without
+ * the rate limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Without TCP_NODELAY the stub delays its responses by a delayed ACK.
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class StatusPostBenchmark {
+  private static final String JOB =
+      "team/folder/multibranch-project/PR-1234-with-a-long-branch-name";
+
+  private StubBitbucket bitbucket;
+  private ApiClient client;
+
+  @Setup
+  public void setUp() throws Exception {
+    this.bitbucket = new StubBitbucket();
+    this.client = new ApiClient(
+        this.bitbucket.getEndpoint(),
+        new ApiClientCache.Account(
+            "user", "password",
+            new RateLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE)),
+        "jenkins", "Jenkins");
+  }
+
+  @TearDown(Level.Iteration)
+  public void forgetStatuses() {
+    this.bitbucket.reset();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.bitbucket.close();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public ApiClient.Response setBuildStatus() {
+    String revision =
+        String.format("%040x", ThreadLocalRandom.current().nextLong());
+    return this.client.setBuildStatus("owner/repo", revision,
+                                      BuildState.INPROGRESS,
+                                      "http://jenkins/job/app/1/", null, JOB);
+  }
+}
@@ -1,30 +1,37 @@
 package org.jenkinsci.plugins.bbprb;
 
 import hudson.Extension;
-import hudson.model.AbstractBuild;
+import hudson.model.Cause;
 import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
 import hudson.model.Result;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import hudson.triggers.Trigger;
 import java.lang.Exception;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import jenkins.model.ParameterizedJobMixIn;
 
 import org.jenkinsci.plugins.bbprb.bitbucket.BuildState;
 
 @Extension
-public class BitbucketBuildListener extends RunListener<AbstractBuild<?, ?>> {
+public class BitbucketBuildListener extends RunListener<Run<?, ?>> {
 
   @Override
-  public void onStarted(AbstractBuild<?, ?> build, TaskListener listener) {
+  public void onStarted(Run<?, ?> build, TaskListener listener) {
+    if (build.getCause(Cause.UserIdCause.class) != null) {
+      forgetResult(build);
+    }
+
     BitbucketCause cause = build.getCause(BitbucketCause.class);
     if (cause == null) {
       return;
     }
 
-    BitbucketBuildTrigger trigger =
-        build.getProject().getTrigger(BitbucketBuildTrigger.class);
+    BitbucketBuildTrigger trigger = getTrigger(build);
     if (trigger == null) {
       return;
     }
@@ -41,23 +48,77 @@ public class BitbucketBuildListener extends RunListener<AbstractBuild<?, ?>> {
   }
 
   @Override
-  public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
-    BitbucketBuildTrigger trigger =
-        build.getProject().getTrigger(BitbucketBuildTrigger.class);
-    if (trigger != null) {
-      LOGGER.log(Level.FINE, "Completed after BitbucketBuildTrigger");
-      Result result = build.getResult();
-      BuildState state;
-      if (Result.SUCCESS == result) {
-        state = BuildState.SUCCESSFUL;
-      } else if (Result.ABORTED == result) {
-        state = BuildState.STOPPED;
-      } else {
-        state = BuildState.FAILED;
+  public void onCompleted(Run<?, ?> build, TaskListener listener) {
+    // Builds started otherwise, e. g. manually, have no pull request.
+    BitbucketCause cause = build.getCause(BitbucketCause.class);
+    if (cause == null) {
+      return;
+    }
+
+    BitbucketBuildTrigger trigger = getTrigger(build);
+    if (trigger == null) {
+      return;
+    }
+
+    LOGGER.log(Level.FINE, "Completed after BitbucketBuildTrigger");
+    Result result = build.getResult();
+    BuildState state;
+    if (Result.SUCCESS == result) {
+      state = BuildState.SUCCESSFUL;
+    } else if (Result.ABORTED == result) {
+      state = BuildState.STOPPED;
+    } else {
+      state = BuildState.FAILED;
+    }
+    // Stopped results are kept too, so that the poller does not build
+    // the commits again.
+    BuildResultCache.INSTANCE.put(build.getParent(), cause, state,
+                                  build.getUrl());
+    trigger.setPRState(cause, state, build.getUrl());
+  }
+
+  /**
+   * Builds started manually, e. g. rebuilds of a pull request, replace
+   * the known result of the commits. The commits are taken from the cause
+   * or from the parameters.
+   */
+  private static void forgetResult(Run<?, ?> build) {
+    BitbucketCause cause = build.getCause(BitbucketCause.class);
+    String repository;
+    String source;
+    String destination;
+    if (cause != null) {
+      repository = cause.getDestinationRepository();
+      source = cause.getSourceCommitHash();
+      destination = cause.getDestinationCommitHash();
+    } else {
+      ParametersAction parameters = build.getAction(ParametersAction.class);
+      if (parameters == null) {
+        return;
       }
-      BitbucketCause cause = build.getCause(BitbucketCause.class);
-      trigger.setPRState(cause, state, build.getUrl());
+      repository = getParameter(parameters, "bbprbDestinationRepository");
+      source = getParameter(parameters, "bbprbSourceCommitHash");
+      destination = getParameter(parameters, "bbprbDestinationCommitHash");
     }
+    if (repository != null && source != null && destination != null) {
+      LOGGER.log(Level.FINE, "Forgetting the result of {0} {1}..{2}",
+                 new Object[] {repository, source, destination});
+      BuildResultCache.INSTANCE.remove(build.getParent(), repository, source,
+                                       destination);
+    }
+  }
+
+  private static String getParameter(ParametersAction parameters,
+                                     String name) {
+    ParameterValue value = parameters.getParameter(name);
+    return value == null || value.getValue() == null
+        ? null
+        : value.getValue().toString();
+  }
+
+  private static BitbucketBuildTrigger getTrigger(Run<?, ?> build) {
+    return ParameterizedJobMixIn.getTrigger(build.getParent(),
+                                            BitbucketBuildTrigger.class);
   }
 
   private static final Logger LOGGER =
@@ -4,14 +4,12 @@ import antlr.ANTLRException;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import hudson.Extension;
-import hudson.model.AbstractProject;
-import hudson.model.Cause;
+import hudson.model.CauseAction;
 import hudson.model.Executor;
 import hudson.model.Item;
+import hudson.model.Job;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
@@ -32,27 +30,45 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import static com.cloudbees.plugins.credentials.CredentialsMatchers.instanceOf;
 
 import org.jenkinsci.plugins.bbprb.bitbucket.ApiClient;
+import org.jenkinsci.plugins.bbprb.bitbucket.ApiClientCache;
 import org.jenkinsci.plugins.bbprb.bitbucket.BuildState;
+import org.jenkinsci.plugins.bbprb.bitbucket.Endpoint;
+import org.jenkinsci.plugins.bbprb.bitbucket.StatusOutbox;
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
 
-public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
+public class BitbucketBuildTrigger extends Trigger<Job<?, ?>> {
   private final String ciKey;
   private final String ciName;
   private final String credentialsId;
   private final String destinationRepository;
   private final boolean cancelOutdatedJobs;
+  private int quietPeriod;
+  private String priorities;
+  private String destinationBranch;
+  private String bitbucketUrl;
+  private boolean bitbucketServer;
+  private boolean mergeBase;
 
   // XXX: This is for Jelly.
   // https://wiki.jenkins.io/display/JENKINS/Basic+guide+to+Jelly+usage+in+Jenkins
@@ -71,24 +87,116 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
   public boolean getCancelOutdatedJobs() {
     return this.cancelOutdatedJobs;
   }
+  public int getQuietPeriod() {
+    return this.quietPeriod;
+  }
+
+  /**
+   * @param quietPeriod seconds to wait for more updates of a pull request
+   *     before starting the job; zero means start immediately
+   */
+  @DataBoundSetter
+  public void setQuietPeriod(int quietPeriod) {
+    this.quietPeriod = quietPeriod;
+  }
+
+  public String getDestinationBranch() {
+    return this.destinationBranch;
+  }
+
+  /**
+   * @param destinationBranch names or patterns of destination branches
+   *     to build pull requests for; empty means any branch
+   */
+  @DataBoundSetter
+  public void setDestinationBranch(String destinationBranch) {
+    this.destinationBranch = destinationBranch;
+  }
+
+  public String getBitbucketUrl() {
+    return this.bitbucketUrl;
+  }
 
-  private transient ApiClient apiClient;
+  /**
+   * @param bitbucketUrl the API URL of Bitbucket Cloud (e. g. of a relay)
+   *     or the URL of Bitbucket Server; empty means the global setting
+   */
+  @DataBoundSetter
+  public void setBitbucketUrl(String bitbucketUrl) {
+    this.bitbucketUrl = bitbucketUrl;
+  }
+
+  public boolean getBitbucketServer() {
+    return this.bitbucketServer;
+  }
+
+  @DataBoundSetter
+  public void setBitbucketServer(boolean bitbucketServer) {
+    this.bitbucketServer = bitbucketServer;
+  }
+
+  public boolean getMergeBase() {
+    return this.mergeBase;
+  }
+
+  /**
+   * @param mergeBase whether to look up the merge base and the fetch depth
+   *     of pull requests with the API before scheduling builds
+   */
+  @DataBoundSetter
+  public void setMergeBase(boolean mergeBase) {
+    this.mergeBase = mergeBase;
+  }
+
+  public String getPriorities() {
+    return this.priorities;
+  }
+
+  /**
+   * @param priorities lines of a destination branch pattern and
+   *     a priority, e. g. `release/* 10`
+   */
+  @DataBoundSetter
+  public void setPriorities(String priorities) {
+    this.priorities = priorities;
+  }
+
+  // Compiled destinationRepository, destinationBranch and priorities.
+  private transient NameMatcher repositories;
+  private transient NameMatcher branches;
+  private transient List<PriorityRule> priorityRules;
+
+  // The latest event of each pull request waiting for the quiet period.
+  private transient ConcurrentMap<String, QuietCause> quietCauses;
+  // The latest event of each pull request waiting for its merge base.
+  private transient ConcurrentMap<String, BitbucketCause> lookups;
 
   private static final transient ArrayList<String> bbprbSafeParameters =
       new ArrayList<String>() {
         {
           add("bbprbDestinationBranch");
           add("bbprbDestinationCommitHash");
+          add("bbprbDestinationRefspec");
           add("bbprbDestinationRepository");
+          add("bbprbFetchDepth");
+          add("bbprbMergeBase");
           add("bbprbPullRequestAuthor");
           add("bbprbPullRequestId");
           add("bbprbPullRequestTitle");
           add("bbprbSourceBranch");
           add("bbprbSourceCommitHash");
+          add("bbprbSourceRefspec");
           add("bbprbSourceRepository");
         }
       };
 
+  // Pull requests with more commits get no fetch depth.
+  private static final int MAX_FETCH_DEPTH = Integer.getInteger(
+      BitbucketBuildTrigger.class.getName() + ".maxFetchDepth", 100);
+  // Seconds to wait for the merge base before starting the job without it.
+  private static final int MERGE_BASE_TIMEOUT = Integer.getInteger(
+      BitbucketBuildTrigger.class.getName() + ".mergeBaseTimeout", 10);
+
   public static final BitbucketBuildTriggerDescriptor descriptor =
       new BitbucketBuildTriggerDescriptor();
 
@@ -98,7 +206,6 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
                                String ciName, boolean cancelOutdatedJobs)
       throws ANTLRException {
     super();
-    this.apiClient = null;
     this.cancelOutdatedJobs = cancelOutdatedJobs;
     this.ciKey = ciKey;
     this.ciName = ciName;
@@ -107,41 +214,88 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
   }
 
   @Override
-  public void start(AbstractProject<?, ?> project, boolean newInstance) {
+  public void start(Job<?, ?> project, boolean newInstance) {
     logger.log(Level.FINE, "Started for `{0}`", project.getFullName());
 
     super.start(project, newInstance);
 
-    if (credentialsId != null && !credentialsId.isEmpty()) {
-      logger.log(Level.FINE, "Looking up credentials `{0}`",
+    this.quietCauses = new ConcurrentHashMap<>();
+    this.lookups = new ConcurrentHashMap<>();
+    try {
+      compile();
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, "Job `" + project.getFullName() +
+                                   "`: " + e.getMessage(), e);
+      this.repositories = new NameMatcher(null);
+      this.branches = new NameMatcher(null);
+    }
+    TriggerRegistry.register(this.repositories, this);
+
+    ApiClient client = getApiClient();
+    if (client != null) {
+      StatusOutbox.INSTANCE.resume(client, project.getFullName());
+    } else if (credentialsId != null && !credentialsId.isEmpty()) {
+      logger.log(Level.SEVERE, "Credentials `{0}` not found",
                  this.credentialsId);
-      List<UsernamePasswordCredentials> all =
-          CredentialsProvider.lookupCredentials(
-              UsernamePasswordCredentials.class, (Item)null, ACL.SYSTEM,
-              URIRequirementBuilder.fromUri("https://bitbucket.org").build());
-      UsernamePasswordCredentials creds = CredentialsMatchers.firstOrNull(
-          all, CredentialsMatchers.withId(this.credentialsId));
-      if (creds != null) {
-        logger.log(Level.INFO, "Creating Bitbucket API client");
-        this.apiClient = new ApiClient(creds.getUsername(),
-                                       creds.getPassword().getPlainText(),
-                                       this.ciKey, this.ciName);
-      } else {
-        logger.log(Level.SEVERE, "Credentials `{0}` not found",
-                   this.credentialsId);
-      }
     } else {
       logger.log(Level.WARNING, "Missing Bitbucket API credentials");
     }
   }
 
+  /**
+   * Compiles the patterns of the configuration. This is the part of
+   * {@link #start(Job, boolean)} which needs no job, e. g. in benchmarks.
+   *
+   * @throws IllegalArgumentException if a pattern is malformed
+   */
+  void compile() {
+    this.priorityRules = compilePriorities(this.priorities);
+    this.repositories = new NameMatcher(this.destinationRepository);
+    this.branches = new NameMatcher(this.destinationBranch);
+  }
+
+  @Override
+  public void stop() {
+    if (this.repositories != null) {
+      TriggerRegistry.unregister(this.repositories, this);
+    }
+    if (this.quietCauses != null) {
+      // The events are dropped together with the trigger.
+      for (String key : this.quietCauses.keySet()) {
+        QuietCause waiting = this.quietCauses.remove(key);
+        if (waiting != null) {
+          waiting.completion.release();
+        }
+      }
+    }
+    super.stop();
+  }
+
+  /**
+   * The client is shared with other jobs using the same credentials, and
+   * is looked up every time, so that changes of credentials are applied.
+   */
+  ApiClient getApiClient() {
+    return ApiClientCache.get(getEndpoint(), this.credentialsId, this.ciKey,
+                              this.ciName);
+  }
+
+  private Endpoint getEndpoint() {
+    if (this.bitbucketUrl != null && !this.bitbucketUrl.trim().isEmpty()) {
+      return Endpoint.of(this.bitbucketUrl, this.bitbucketServer);
+    }
+    return ((BitbucketBuildTriggerDescriptor)getDescriptor()).getEndpoint();
+  }
+
   public void setPRState(BitbucketCause cause, BuildState state, String path) {
-    if (this.apiClient != null) {
+    ApiClient client = getApiClient();
+    if (client != null) {
       logger.log(Level.INFO, "Setting status of PR #{0} to {1} for {2}",
                  new Object[] {cause.getPullRequestId(), state,
                                cause.getDestinationRepository()});
-      this.apiClient.setBuildStatus(
-          cause.getSourceRepository(), cause.getSourceCommitHash(), state,
+      StatusOutbox.INSTANCE.offer(
+          client, cause.getSourceRepository(),
+          cause.getSourceCommitHash(), state,
           getInstance().getRootUrl() + path, null, this.job.getFullName());
     } else {
       logger.log(Level.INFO,
@@ -149,8 +303,55 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
     }
   }
 
-  private void startJob(BitbucketCause cause) {
+  /**
+   * Starts the job, looking up the merge base first if enabled. The lookup
+   * runs on an API thread, so that threads handling events never wait for
+   * Bitbucket, and the job is started without the merge base if the lookup
+   * takes too long. The event is held until the job is started.
+   */
+  private void startJob(final BitbucketCause cause,
+                        EventCompletion completion) {
+    ApiClient client = this.mergeBase ? getApiClient() : null;
+    if (client == null) {
+      scheduleBuild(cause, null);
+      return;
+    }
+    final String key = getQuietKey(cause);
+    final EventCompletion held = completion.hold();
+    this.lookups.put(key, cause);
+    final CompletableFuture<ApiClient.MergeBase> lookup =
+        client.getMergeBaseAsync(
+            cause.getDestinationRepository(), cause.getSourceRepository(),
+            cause.getSourceCommitHash(), cause.getDestinationCommitHash(),
+            MAX_FETCH_DEPTH);
+    final ScheduledFuture<?> timeout = Timer.get().schedule(() -> {
+      if (lookup.complete(null)) {
+        logger.log(Level.WARNING, "PR #{0}: merge base lookup timed out",
+                   cause.getPullRequestId());
+      }
+    }, MERGE_BASE_TIMEOUT, TimeUnit.SECONDS);
+    lookup.whenCompleteAsync((mergeBase, e) -> {
+      timeout.cancel(false);
+      try {
+        if (e != null) {
+          logger.log(Level.WARNING, "Failed to look up the merge base", e);
+        }
+        if (!this.lookups.remove(key, cause) && this.cancelOutdatedJobs) {
+          logger.log(Level.FINE, "PR #{0} updated during the lookup",
+                     cause.getPullRequestId());
+          return;
+        }
+        scheduleBuild(cause, e == null ? mergeBase : null);
+      } catch (RuntimeException ex) {
+        logger.log(Level.WARNING, "Failed to start the job", ex);
+      } finally {
+        held.release();
+      }
+    }, Timer.get());
+  }
 
+  private void scheduleBuild(BitbucketCause cause,
+                             ApiClient.MergeBase mergeBase) {
     List<ParameterValue> bbprb = new ArrayList<>();
 
     bbprb.add(new StringParameterValue("bbprbDestinationBranch",
@@ -171,38 +372,172 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
                                        cause.getSourceCommitHash()));
     bbprb.add(new StringParameterValue("bbprbSourceRepository",
                                        cause.getSourceRepository()));
+    // Hints to fetch only what the build needs.
+    bbprb.add(new StringParameterValue(
+        "bbprbSourceRefspec", getRefspec(cause.getSourceBranch())));
+    bbprb.add(new StringParameterValue(
+        "bbprbDestinationRefspec", getRefspec(cause.getDestinationBranch())));
+    String hash = mergeBase == null ? null : mergeBase.getHash();
+    int count = mergeBase == null ? -1 : mergeBase.getCommits();
+    bbprb.add(new StringParameterValue("bbprbMergeBase",
+                                       hash == null ? "" : hash));
+    // The commits of the pull request and the merge base.
+    bbprb.add(new StringParameterValue(
+        "bbprbFetchDepth", count < 0 ? "" : String.valueOf(count + 1)));
 
     setPRState(cause, BuildState.INPROGRESS, this.job.getUrl());
 
-    this.job.scheduleBuild2(0, cause,
-                            new ParametersAction(bbprb, bbprbSafeParameters));
+    // Works for any parameterized job, e. g. Pipeline.
+    ParameterizedJobMixIn.scheduleBuild2(
+        this.job, 0, new CauseAction(cause),
+        new ParametersAction(bbprb, bbprbSafeParameters));
   }
 
-  private Jenkins getInstance() {
-    final Jenkins instance = Jenkins.getInstance();
-    if (instance == null) {
-      throw new IllegalStateException("Jenkins instance is NULL!");
+  // The remote is assumed to be `origin`, as in Git plugin by default.
+  private static String getRefspec(String branch) {
+    return "+refs/heads/" + branch + ":refs/remotes/origin/" + branch;
+  }
+
+  /**
+   * Starts the job after the quiet period, unless another event of
+   * the same pull request comes in meanwhile. The event is held until
+   * the job is started or the event is outdated.
+   */
+  private void scheduleJob(final BitbucketCause cause,
+                           EventCompletion completion) {
+    if (this.quietPeriod <= 0) {
+      startJob(cause, completion);
+      return;
     }
-    return instance;
+    final String key = getQuietKey(cause);
+    final QuietCause waiting = new QuietCause(cause, completion.hold());
+    QuietCause outdated = this.quietCauses.put(key, waiting);
+    if (outdated != null) {
+      logger.log(Level.FINE, "PR #{0} updated during the quiet period",
+                 cause.getPullRequestId());
+      outdated.completion.release();
+    }
+    Timer.get().schedule(() -> {
+      if (this.quietCauses.remove(key, waiting)) {
+        try {
+          startJob(cause, waiting.completion);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to start the job", e);
+        } finally {
+          waiting.completion.release();
+        }
+      }
+    }, this.quietPeriod, TimeUnit.SECONDS);
+  }
+
+  /**
+   * An event waiting for the quiet period. Whoever removes it from
+   * {@link #quietCauses} releases its completion.
+   */
+  private static final class QuietCause {
+    final BitbucketCause cause;
+    final EventCompletion completion;
+
+    QuietCause(BitbucketCause cause, EventCompletion completion) {
+      this.cause = cause;
+      this.completion = completion;
+    }
+  }
+
+  /**
+   * @return the priority of the first rule matching the destination
+   *     branch, or zero
+   */
+  int getPriority(BitbucketCause cause) {
+    if (this.priorityRules == null) {
+      return 0;
+    }
+    for (PriorityRule rule : this.priorityRules) {
+      if (rule.branch.matcher(cause.getDestinationBranch()).matches()) {
+        return rule.priority;
+      }
+    }
+    return 0;
   }
 
-  private boolean
-  hasCauseFromTheSamePullRequest(@Nullable List<Cause> causes,
-                                 @Nullable BitbucketCause pullRequestCause) {
-    if (causes != null && pullRequestCause != null) {
-      for (Cause cause : causes) {
-        if (cause instanceof BitbucketCause) {
-          BitbucketCause sc = (BitbucketCause)cause;
-          if (StringUtils.equals(sc.getPullRequestId(),
-                                 pullRequestCause.getPullRequestId()) &&
-              StringUtils.equals(sc.getSourceRepository(),
-                                 pullRequestCause.getSourceRepository())) {
-            return true;
-          }
+  /**
+   * @return the rules in order, malformed ones are skipped
+   */
+  private static List<PriorityRule> compilePriorities(String priorities) {
+    List<PriorityRule> rules = new ArrayList<>();
+    if (priorities == null) {
+      return rules;
+    }
+    for (String line : priorities.split("\n")) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      String[] rule = line.trim().split("\\s+");
+      if (rule.length == 2) {
+        try {
+          rules.add(new PriorityRule(Glob.compile(rule[0]),
+                                     Integer.parseInt(rule[1])));
+          continue;
+        } catch (NumberFormatException e) {
+          // Reported below.
         }
       }
+      logger.log(Level.WARNING, "Malformed priority rule: `{0}`", line);
     }
-    return false;
+    return rules;
+  }
+
+  private static final class PriorityRule {
+    final Pattern branch;
+    final int priority;
+
+    PriorityRule(Pattern branch, int priority) {
+      this.branch = branch;
+      this.priority = priority;
+    }
+  }
+
+  private static String getQuietKey(BitbucketCause cause) {
+    return cause.getDestinationRepository() + "#" +
+        cause.getPullRequestId() + "@" + cause.getSourceRepository();
+  }
+
+  /**
+   * Reports the known result of the same commits instead of building
+   * them again, e. g. when only the title of the pull request is changed.
+   * Failures are built again, since they may be flaky.
+   *
+   * @return true if the result is known
+   */
+  private boolean reuseResult(BitbucketCause cause) {
+    BuildResultCache.Result result =
+        BuildResultCache.INSTANCE.get(this.job, cause);
+    if (result == null || result.getState() != BuildState.SUCCESSFUL) {
+      return false;
+    }
+    logger.log(Level.FINE, "PR #{0}: commits already built by `{1}`",
+               new Object[] {cause.getPullRequestId(), result.getUrl()});
+    // An event waiting for the quiet period or for the merge base is
+    // outdated by this one.
+    if (this.quietCauses != null) {
+      QuietCause outdated = this.quietCauses.remove(getQuietKey(cause));
+      if (outdated != null) {
+        outdated.completion.release();
+      }
+    }
+    if (this.lookups != null) {
+      this.lookups.remove(getQuietKey(cause));
+    }
+    setPRState(cause, result.getState(), result.getUrl());
+    return true;
+  }
+
+  private Jenkins getInstance() {
+    final Jenkins instance = Jenkins.getInstance();
+    if (instance == null) {
+      throw new IllegalStateException("Jenkins instance is NULL!");
+    }
+    return instance;
   }
 
   private void cancelPR(BitbucketCause cause) {
@@ -211,69 +546,77 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
     logger.log(Level.FINE, "Looking for queued jobs that match PR #{0}",
                cause.getPullRequestId());
     Queue queue = getInstance().getQueue();
-    for (Queue.Item item : queue.getItems()) {
-      if (hasCauseFromTheSamePullRequest(item.getCauses(), cause)) {
+    for (long id : PullRequestIndex.getQueueItems(this.job, cause)) {
+      Queue.Item item = queue.getItem(id);
+      if (item != null) {
         logger.fine("Canceling item in queue: " + item);
-        queue.cancel(item);
+        if (queue.cancel(item)) {
+          Metrics.CANCELLATIONS.inc("queue");
+        }
       }
     }
 
     logger.log(Level.FINE, "Looking for running jobs that match PR #{0}",
                cause.getPullRequestId());
-    for (Object o : job.getBuilds()) {
-      if (o instanceof Run) {
-        Run build = (Run)o;
-        if (build.isBuilding() &&
-            hasCauseFromTheSamePullRequest(build.getCauses(), cause)) {
-          logger.fine("Aborting '" + build + "' since the PR is outdated");
-          try {
-            build.setDescription("Aborted build since the PR is outdated");
-          } catch (IOException e) {
-            logger.warning("Could not set build description: " +
-                           e.getMessage());
-          }
-          final Executor executor = build.getExecutor();
-          if (executor == null) {
-            throw new IllegalStateException("Executor can't be NULL");
-          }
-          executor.interrupt(Result.ABORTED);
+    for (Run<?, ?> build : PullRequestIndex.getBuilds(this.job, cause)) {
+      if (build.isBuilding()) {
+        logger.fine("Aborting '" + build + "' since the PR is outdated");
+        try {
+          build.setDescription("Aborted build since the PR is outdated");
+        } catch (IOException e) {
+          logger.warning("Could not set build description: " +
+                         e.getMessage());
         }
+        final Executor executor = build.getExecutor();
+        if (executor == null) {
+          throw new IllegalStateException("Executor can't be NULL");
+        }
+        executor.interrupt(Result.ABORTED);
+        Metrics.CANCELLATIONS.inc("running");
       }
     }
     SecurityContextHolder.setContext(orig);
   }
 
-  public void handlePR(String event, JSONObject pr) {
+  boolean matchesRepository(String repository) {
+    return this.repositories != null && this.repositories.matches(repository);
+  }
 
-    JSONObject src = pr.getJSONObject("source");
-    JSONObject dst = pr.getJSONObject("destination");
-    String dstRepository =
-        dst.getJSONObject("repository").getString("full_name");
-    if (!dstRepository.equals(this.destinationRepository)) {
+  public void handlePR(String event, PullRequest pr) {
+    handlePR(event, pr, EventCompletion.NONE);
+  }
+
+  void handlePR(String event, PullRequest pr, EventCompletion completion) {
+    String dstRepository = pr.getDestinationRepository();
+    if (!matchesRepository(dstRepository)) {
       logger.log(Level.FINE,
                  "Job `{0}`: repository `{1}` does not match `{2}`. Skipping.",
                  new Object[] {this.job.getFullName(), dstRepository,
                                this.destinationRepository});
       return;
     }
-    BitbucketCause cause = new BitbucketCause(
-        src.getJSONObject("branch").getString("name"),
-        dst.getJSONObject("branch").getString("name"),
-        src.getJSONObject("repository").getString("full_name"),
-        pr.getString("id"), // FIXME: it is integer
-        dstRepository, pr.getString("title"),
-        src.getJSONObject("commit").getString("hash"),
-        dst.getJSONObject("commit").getString("hash"),
-        pr.getJSONObject("author").getString("display_name"));
+    if (!this.branches.matchesOrEmpty(pr.getDestinationBranch())) {
+      logger.log(Level.FINE,
+                 "Job `{0}`: branch `{1}` does not match `{2}`. Skipping.",
+                 new Object[] {this.job.getFullName(),
+                               pr.getDestinationBranch(),
+                               this.destinationBranch});
+      return;
+    }
+    BitbucketCause cause = newCause(pr);
     switch (event) {
       case "pullrequest:created":
-        startJob(cause);
+        if (!reuseResult(cause)) {
+          scheduleJob(cause, completion);
+        }
         break;
       case "pullrequest:updated":
         if (this.cancelOutdatedJobs) {
           cancelPR(cause);
         }
-        startJob(cause);
+        if (!reuseResult(cause)) {
+          scheduleJob(cause, completion);
+        }
         break;
       default:
         logger.log(Level.WARNING, "Unhandled event: `{0}`",
@@ -281,17 +624,118 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
     }
   }
 
+  private BitbucketCause newCause(PullRequest pr) {
+    return new BitbucketCause(
+        pr.getSourceBranch(), pr.getDestinationBranch(),
+        pr.getSourceRepository(), pr.getId(), pr.getDestinationRepository(),
+        pr.getTitle(), pr.getSourceCommitHash(),
+        pr.getDestinationCommitHash(), pr.getAuthor(),
+        getEndpoint().getPullRequestUrl(pr.getDestinationRepository(),
+                                        pr.getId()));
+  }
+
+  /**
+   * Handles a pull request found by {@link PullRequestPoller} as if it
+   * was updated, unless its commits are already built, being built or
+   * waiting in the queue.
+   */
+  void reconcile(PullRequest pr) {
+    if (!matchesRepository(pr.getDestinationRepository()) ||
+        !this.branches.matchesOrEmpty(pr.getDestinationBranch())) {
+      return;
+    }
+    BitbucketCause cause = newCause(pr);
+    if (isKnown(cause)) {
+      return;
+    }
+    logger.log(Level.INFO, "Job `{0}`: missed an event of PR #{1} of {2}",
+               new Object[] {this.job.getFullName(), cause.getPullRequestId(),
+                             cause.getDestinationRepository()});
+    handlePR("pullrequest:updated", pr);
+  }
+
+  private boolean isKnown(BitbucketCause cause) {
+    if (BuildResultCache.INSTANCE.get(this.job, cause) != null) {
+      return true;
+    }
+    QuietCause waiting = this.quietCauses.get(getQuietKey(cause));
+    if (waiting != null && sameCommits(waiting.cause, cause)) {
+      return true;
+    }
+    if (sameCommits(this.lookups.get(getQuietKey(cause)), cause)) {
+      return true;
+    }
+    Queue queue = getInstance().getQueue();
+    for (long id : PullRequestIndex.getQueueItems(this.job, cause)) {
+      Queue.Item item = queue.getItem(id);
+      if (item != null &&
+          sameCommits(PullRequestIndex.getCause(item.getCauses()), cause)) {
+        return true;
+      }
+    }
+    for (Run<?, ?> build : PullRequestIndex.getBuilds(this.job, cause)) {
+      if (build.isBuilding() &&
+          sameCommits(build.getCause(BitbucketCause.class), cause)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean sameCommits(BitbucketCause a, BitbucketCause b) {
+    return a != null &&
+        a.getSourceCommitHash().equals(b.getSourceCommitHash()) &&
+        a.getDestinationCommitHash().equals(b.getDestinationCommitHash());
+  }
+
   @Extension
   @Symbol("bbprb")
   public static final class BitbucketBuildTriggerDescriptor
       extends TriggerDescriptor {
+    // Limits of concurrent pull request builds, zero means no limit.
+    private int maxBuildsPerRepository = 0;
+    private int maxBuildsPerAuthor = 0;
+    // Seconds between polls of open pull requests, zero disables polling.
+    private int pollInterval = 0;
+    // Bitbucket instance of the triggers which do not set their own.
+    private String bitbucketUrl;
+    private boolean bitbucketServer = false;
+
     public BitbucketBuildTriggerDescriptor() {
-      load();
+      // There is no configuration outside Jenkins, e. g. in benchmarks.
+      if (Jenkins.getInstance() != null) {
+        load();
+      }
+    }
+
+    public int getMaxBuildsPerRepository() {
+      return this.maxBuildsPerRepository;
+    }
+
+    public int getMaxBuildsPerAuthor() {
+      return this.maxBuildsPerAuthor;
+    }
+
+    public int getPollInterval() {
+      return this.pollInterval;
+    }
+
+    public String getBitbucketUrl() {
+      return this.bitbucketUrl;
+    }
+
+    public boolean getBitbucketServer() {
+      return this.bitbucketServer;
+    }
+
+    Endpoint getEndpoint() {
+      return Endpoint.of(this.bitbucketUrl, this.bitbucketServer);
     }
 
     @Override
     public boolean isApplicable(Item item) {
-      return item instanceof AbstractProject;
+      return item instanceof Job &&
+          item instanceof ParameterizedJobMixIn.ParameterizedJob;
     }
 
     @Override
@@ -302,6 +746,13 @@ public class BitbucketBuildTrigger extends Trigger<AbstractProject<?, ?>> {
     @Override
     public boolean configure(StaplerRequest req, JSONObject json)
         throws FormException {
+      this.maxBuildsPerRepository =
+          Math.max(0, json.optInt("maxBuildsPerRepository", 0));
+      this.maxBuildsPerAuthor =
+          Math.max(0, json.optInt("maxBuildsPerAuthor", 0));
+      this.pollInterval = Math.max(0, json.optInt("pollInterval", 0));
+      this.bitbucketUrl = json.optString("bitbucketUrl", "").trim();
+      this.bitbucketServer = json.optBoolean("bitbucketServer", false);
       save();
       return super.configure(req, json);
     }
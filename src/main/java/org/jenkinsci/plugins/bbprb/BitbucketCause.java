@@ -15,6 +15,8 @@ public class BitbucketCause extends Cause {
   private final String sourceCommitHash;
   private final String destinationCommitHash;
   private final String pullRequestAuthor;
+  // Null in causes of builds made before it was added.
+  private final String pullRequestUrl;
   public static final String BITBUCKET_URL = "https://bitbucket.org/";
 
   public BitbucketCause(String sourceBranch, String destinationBranch,
@@ -22,6 +24,19 @@ public class BitbucketCause extends Cause {
                         String destinationRepository, String pullRequestTitle,
                         String sourceCommitHash, String destinationCommitHash,
                         String pullRequestAuthor) {
+    this(sourceBranch, destinationBranch, sourceRepository, pullRequestId,
+         destinationRepository, pullRequestTitle, sourceCommitHash,
+         destinationCommitHash, pullRequestAuthor, null);
+  }
+
+  /**
+   * @param pullRequestUrl the web page of the pull request
+   */
+  public BitbucketCause(String sourceBranch, String destinationBranch,
+                        String sourceRepository, String pullRequestId,
+                        String destinationRepository, String pullRequestTitle,
+                        String sourceCommitHash, String destinationCommitHash,
+                        String pullRequestAuthor, String pullRequestUrl) {
     this.sourceBranch = sourceBranch;
     this.destinationBranch = destinationBranch;
     this.sourceRepository = sourceRepository;
@@ -31,6 +46,7 @@ public class BitbucketCause extends Cause {
     this.sourceCommitHash = sourceCommitHash;
     this.destinationCommitHash = destinationCommitHash;
     this.pullRequestAuthor = pullRequestAuthor;
+    this.pullRequestUrl = pullRequestUrl;
   }
 
   public String getSourceBranch() {
@@ -66,14 +82,20 @@ public class BitbucketCause extends Cause {
 
   @Override
   public String getShortDescription() {
-    String description =
-        "<a href=\"" + BITBUCKET_URL + this.getDestinationRepository();
-    description += "/pull-request/" + this.getPullRequestId();
+    String description = "<a href=\"" + this.getPullRequestUrl();
     description += "\">#" + this.getPullRequestId() + " " +
                    this.getPullRequestTitle() + "</a>";
     return description;
   }
 
+  public String getPullRequestUrl() {
+    if (this.pullRequestUrl == null) {
+      return BITBUCKET_URL + this.getDestinationRepository() +
+          "/pull-request/" + this.getPullRequestId();
+    }
+    return this.pullRequestUrl;
+  }
+
   public String getPullRequestAuthor() {
     return this.pullRequestAuthor;
   }
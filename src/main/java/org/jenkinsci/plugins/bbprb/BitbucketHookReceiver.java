@@ -1,16 +1,25 @@
 package org.jenkinsci.plugins.bbprb;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.UnprotectedRootAction;
-import hudson.security.ACL;
 import hudson.security.csrf.CrumbExclusion;
-import hudson.triggers.Trigger;
-import hudson.triggers.TriggerDescriptor;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.URLDecoder;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.FilterChain;
@@ -18,21 +27,41 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import jenkins.model.Jenkins;
-import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import org.acegisecurity.context.SecurityContext;
-import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
+
 @Extension
 public class BitbucketHookReceiver
     extends CrumbExclusion implements UnprotectedRootAction {
 
   private static final String BITBUCKET_HOOK_URL = "bbprb-hook";
 
+  private static final int MAX_BODY_SIZE = Integer.getInteger(
+      BitbucketHookReceiver.class.getName() + ".maxBodySize", 1024 * 1024);
+  private static final int MAX_BATCH_SIZE = Integer.getInteger(
+      BitbucketHookReceiver.class.getName() + ".maxBatchSize",
+      16 * 1024 * 1024);
+  private static final int MAX_BATCH_RECORDS = Integer.getInteger(
+      BitbucketHookReceiver.class.getName() + ".maxBatchRecords", 1000);
+  // Milliseconds a batch may spend handling events on the request thread.
+  private static final long BATCH_RUN_TIME = Long.getLong(
+      BitbucketHookReceiver.class.getName() + ".batchRunTime", 10000);
+  private static final byte[] PAYLOAD_PREFIX =
+      "payload=".getBytes(StandardCharsets.US_ASCII);
+  private static final int SC_REQUEST_ENTITY_TOO_LARGE = 413;
+  private static final int SC_METHOD_NOT_ALLOWED = 405;
+
+  // Seconds to suggest to Bitbucket when the queue is full.
+  private static final int RETRY_AFTER = Integer.getInteger(
+      BitbucketHookReceiver.class.getName() + ".retryAfter", 30);
+
   @Override
   public boolean process(HttpServletRequest req, HttpServletResponse resp,
                          FilterChain chain)
@@ -47,6 +76,27 @@ public class BitbucketHookReceiver
 
   public void doIndex(StaplerRequest req, StaplerResponse resp)
       throws IOException {
+    long start = System.nanoTime();
+    try {
+      receive(req, resp);
+    } finally {
+      Metrics.HOOK_RECEIVE.observeSince(start);
+      Metrics.HOOK_RESPONSES.inc(String.valueOf(resp.getStatus()));
+    }
+  }
+
+  /**
+   * Metrics in the Prometheus text format, see {@link Metrics}.
+   */
+  public void doMetrics(StaplerRequest req, StaplerResponse resp)
+      throws IOException {
+    Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+    resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    Metrics.write(resp.getWriter());
+  }
+
+  private void receive(StaplerRequest req, StaplerResponse resp)
+      throws IOException {
 
     String uri = req.getRequestURI();
     if (!uri.contains("/" + BITBUCKET_HOOK_URL + "/")) {
@@ -64,65 +114,446 @@ public class BitbucketHookReceiver
       return;
     }
 
-    String body = IOUtils.toString(req.getInputStream());
-    if (body.isEmpty()) {
-      LOGGER.log(Level.WARNING, "Received empty request body");
-      resp.setStatus(StaplerResponse.SC_BAD_REQUEST);
+    if (!event.startsWith("pullrequest:")) {
+      LOGGER.log(Level.FINE, "Ignoring event `{0}`", event);
       return;
     }
 
-    String contentType = req.getContentType();
-    if (contentType != null &&
-        contentType.startsWith("application/x-www-form-urlencoded")) {
-      body = URLDecoder.decode(body, "UTF-8");
+    if (req.getContentLength() > MAX_BODY_SIZE) {
+      LOGGER.log(Level.WARNING, "Request body is too large: {0} bytes",
+                 req.getContentLength());
+      Metrics.EVENTS_DROPPED.inc("too_large");
+      resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
     }
-    if (body.startsWith("payload=")) {
-      body = body.substring(8);
+
+    PullRequest pr;
+    long parseStart = System.nanoTime();
+    try {
+      pr = PullRequest.parse(getPayload(req));
+    } catch (PayloadTooLargeException e) {
+      LOGGER.log(Level.WARNING, e.getMessage());
+      Metrics.EVENTS_DROPPED.inc("too_large");
+      resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    } catch (JsonProcessingException e) {
+      LOGGER.log(Level.WARNING, e.getMessage());
+      Metrics.EVENTS_DROPPED.inc("malformed");
+      resp.setStatus(StaplerResponse.SC_BAD_REQUEST);
+      return;
+    } finally {
+      Metrics.HOOK_PARSE.observeSince(parseStart);
     }
 
     LOGGER.log(Level.FINE,
-               "Received commit hook notification, key: `{0}`, body: `{1}`",
-               new Object[] {event, body});
+               "Received commit hook notification, key: `{0}`, PR: `{1}`",
+               new Object[] {event, pr});
 
-    try {
-      JSONObject payload = JSONObject.fromObject(body);
-      if (event.startsWith("pullrequest:")) {
-        JSONObject pr = payload.getJSONObject("pullrequest");
-        for (BitbucketBuildTrigger trigger : getBitbucketTriggers()) {
-          trigger.handlePR(event, pr);
+    String delivery = null;
+    String uuid = req.getHeader("x-request-uuid");
+    if (uuid != null) {
+      String hook = req.getHeader("x-hook-uuid");
+      delivery = (hook != null ? hook : "") + "/" + uuid;
+    }
+
+    int status = accept(event, delivery, pr, false);
+    if (status == StaplerResponse.SC_SERVICE_UNAVAILABLE) {
+      resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+    }
+    resp.setStatus(status);
+  }
+
+  /**
+   * Journals and queues the event unless it is a duplicate.
+   *
+   * @param delivery the delivery's UUID, if known
+   * @param wait handle the event right away if the queue is full,
+   *     instead of rejecting it
+   * @return HTTP status to respond with
+   */
+  private static int accept(String event, String delivery, PullRequest pr,
+                            boolean wait) throws IOException {
+    List<String> keys = getDeliveryKeys(delivery, pr);
+    if (!isNewDelivery(keys)) {
+      LOGGER.log(Level.FINE, "Ignoring duplicate delivery of `{0}`: {1}",
+                 new Object[] {event, keys});
+      Metrics.EVENTS_DROPPED.inc("duplicate");
+      return StaplerResponse.SC_OK;
+    }
+    long id = -1;
+    HookJournal journal = HookJournal.get();
+    if (journal != null) {
+      try {
+        id = journal.accept(event, pr.toJson());
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "Failed to write the journal", e);
+        Metrics.EVENTS_DROPPED.inc("journal");
+        forgetDelivery(keys);
+        return StaplerResponse.SC_SERVICE_UNAVAILABLE;
+      }
+    }
+    if (wait) {
+      HookDispatcher.INSTANCE.submitOrRun(id, event, pr);
+    } else if (!HookDispatcher.INSTANCE.submit(id, event, pr)) {
+      HookDispatcher.done(id);
+      forgetDelivery(keys);
+      return StaplerResponse.SC_SERVICE_UNAVAILABLE;
+    }
+    return StaplerResponse.SC_ACCEPTED;
+  }
+
+  /**
+   * Accepts a batch of events, e. g. from a relay which buffered
+   * deliveries while Jenkins was down.
+   *
+   * The body is newline-delimited JSON, a record per line:
+   * `{"event": "pullrequest:updated", "delivery": "...", "payload": {...}}`
+   * where `delivery` is optional, and `event` and `delivery` come before
+   * `payload`. Only the latest event of each pull
+   * request is handled, earlier ones are superseded. When the queue is
+   * full, events are handled before responding instead of being
+   * rejected, but only for a limited time: the following events are
+   * rejected as by the index end-point. The response has a line
+   * `{"status": ...}` per record, in the same order, with the status
+   * the record would get from the index end-point.
+   *
+   * Batches with too many records or bytes are rejected as a whole
+   * with 413.
+   */
+  public void doBatch(StaplerRequest req, StaplerResponse resp)
+      throws IOException {
+    if (!"POST".equals(req.getMethod())) {
+      resp.setStatus(SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+
+    if (req.getContentLength() > MAX_BATCH_SIZE) {
+      LOGGER.log(Level.WARNING, "Batch is too large: {0} bytes",
+                 req.getContentLength());
+      Metrics.EVENTS_DROPPED.inc("too_large");
+      resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    List<BatchRecord> records = new ArrayList<>();
+    Map<String, BatchRecord> latest = new HashMap<>();
+    LimitedInputStream body =
+        new LimitedInputStream(req.getInputStream(), MAX_BATCH_SIZE);
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(body, StandardCharsets.UTF_8));
+    while (true) {
+      BatchRecord record;
+      try {
+        String line = readLine(in);
+        if (line == null) {
+          break;
         }
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        record = BatchRecord.parse(line);
+      } catch (PayloadTooLargeException e) {
+        if (body.isExceeded()) {
+          LOGGER.log(Level.WARNING, "Batch is larger than {0} bytes",
+                     MAX_BATCH_SIZE);
+          Metrics.EVENTS_DROPPED.inc("too_large");
+          resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
+          return;
+        }
+        Metrics.EVENTS_DROPPED.inc("too_large");
+        record = new BatchRecord(SC_REQUEST_ENTITY_TOO_LARGE);
+      } catch (JsonProcessingException e) {
+        Metrics.EVENTS_DROPPED.inc("malformed");
+        record = new BatchRecord(StaplerResponse.SC_BAD_REQUEST);
+      }
+      if (records.size() >= MAX_BATCH_RECORDS) {
+        LOGGER.log(Level.WARNING, "Batch has more than {0} records",
+                   MAX_BATCH_RECORDS);
+        Metrics.EVENTS_DROPPED.inc("too_large");
+        resp.setStatus(SC_REQUEST_ENTITY_TOO_LARGE);
         return;
       }
-    } catch (JSONException e) {
-      LOGGER.log(Level.WARNING, e.getMessage());
-      resp.setStatus(StaplerResponse.SC_BAD_REQUEST);
-      return;
+      records.add(record);
+      if (record.pr != null) {
+        BatchRecord previous = latest.put(
+            record.pr.getDestinationRepository() + "#" + record.pr.getId(),
+            record);
+        if (previous != null) {
+          Metrics.EVENTS_DROPPED.inc("superseded");
+          previous.supersede();
+        }
+      }
+    }
+    LOGGER.log(Level.FINE, "Received a batch of {0} events", records.size());
+
+    // Past the deadline events are rejected if the queue is full, so that
+    // a large backlog does not hold the request thread for long.
+    long deadline =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_RUN_TIME);
+    boolean rejected = false;
+    for (BatchRecord record : records) {
+      if (record.pr != null) {
+        boolean wait = deadline - System.nanoTime() > 0;
+        record.status = accept(record.event, record.delivery, record.pr, wait);
+        rejected |= record.status == StaplerResponse.SC_SERVICE_UNAVAILABLE;
+      }
+    }
+
+    if (rejected) {
+      resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+    }
+    resp.setStatus(StaplerResponse.SC_OK);
+    resp.setContentType("application/x-ndjson; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    for (BatchRecord record : records) {
+      out.print("{\"status\":" + record.status + "}\n");
+    }
+    out.flush();
+  }
+
+  /**
+   * @return the line without the line break, or null at the end of input
+   */
+  private static String readLine(BufferedReader in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0 && c != '\n') {
+      if (line.length() >= MAX_BODY_SIZE) {
+        // Skip the rest of the line, the next one may be fine.
+        do {
+          c = in.read();
+        } while (c >= 0 && c != '\n');
+        throw new PayloadTooLargeException(MAX_BODY_SIZE);
+      }
+      line.append((char)c);
+    }
+    if (c < 0 && line.length() == 0) {
+      return null;
+    }
+    return line.toString();
+  }
+
+  private static final class BatchRecord {
+    private int status;
+    private String event;
+    private String delivery;
+    private PullRequest pr;
+
+    BatchRecord(int status) {
+      this.status = status;
+    }
+
+    static BatchRecord parse(String line) throws IOException {
+      BatchRecord record = new BatchRecord(StaplerResponse.SC_OK);
+      JsonParser parser = PullRequest.createParser(line);
+      try {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+          throw new JsonParseException("Expected an object",
+                                       parser.getCurrentLocation());
+        }
+        PullRequest pr = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          JsonToken token = parser.nextToken();
+          if ("event".equals(name) && token == JsonToken.VALUE_STRING) {
+            record.event = parser.getText();
+          } else if ("delivery".equals(name) &&
+                     token == JsonToken.VALUE_STRING) {
+            record.delivery = parser.getText();
+          } else if ("payload".equals(name) &&
+                     token == JsonToken.START_OBJECT) {
+            pr = PullRequest.readPayload(parser);
+            break;
+          } else {
+            parser.skipChildren();
+          }
+        }
+        if (record.event == null || pr == null) {
+          throw new JsonParseException("Expected `event` before `payload`",
+                                       parser.getCurrentLocation());
+        }
+        if (record.event.startsWith("pullrequest:")) {
+          record.pr = pr;
+        }
+        return record;
+      } finally {
+        parser.close();
+      }
+    }
+
+    void supersede() {
+      this.pr = null;
+      this.status = StaplerResponse.SC_OK;
+    }
+  }
+
+  /**
+   * The payload is either JSON or a form with the `payload` field.
+   */
+  private static InputStream getPayload(StaplerRequest req)
+      throws IOException {
+    InputStream in = new LimitedInputStream(
+        new BufferedInputStream(req.getInputStream()), MAX_BODY_SIZE);
+    String contentType = req.getContentType();
+    if (contentType != null &&
+        contentType.startsWith("application/x-www-form-urlencoded")) {
+      in = new FormDecodingInputStream(in);
+    }
+    PushbackInputStream pin =
+        new PushbackInputStream(in, PAYLOAD_PREFIX.length);
+    byte[] prefix = new byte[PAYLOAD_PREFIX.length];
+    int n = IOUtils.read(pin, prefix);
+    if (n != prefix.length || !Arrays.equals(prefix, PAYLOAD_PREFIX)) {
+      pin.unread(prefix, 0, n);
+    }
+    return pin;
+  }
+
+  /**
+   * A delivery is identified by its UUID, and by the pull request and
+   * its commits: different web-hooks may send the same event.
+   */
+  private static List<String> getDeliveryKeys(String delivery,
+                                              PullRequest pr) {
+    List<String> keys = new ArrayList<>(2);
+    if (delivery != null) {
+      keys.add(delivery);
+    }
+    keys.add(DeliveryCache.commitKey(pr));
+    return keys;
+  }
+
+  private static boolean isNewDelivery(List<String> keys) {
+    boolean isNew = true;
+    // Remember all the keys, even if one of them is already known.
+    for (String key : keys) {
+      isNew &= DeliveryCache.INSTANCE.add(key);
+    }
+    return isNew;
+  }
+
+  private static void forgetDelivery(List<String> keys) {
+    for (String key : keys) {
+      DeliveryCache.INSTANCE.remove(key);
+    }
+  }
+
+  private static final class PayloadTooLargeException extends IOException {
+    PayloadTooLargeException(long limit) {
+      super("Request body is larger than " + limit + " bytes");
     }
   }
 
-  private static List<BitbucketBuildTrigger> getBitbucketTriggers() {
-    List<BitbucketBuildTrigger> bbtriggers = new ArrayList<>();
+  /**
+   * Fails when more than the given number of bytes are read.
+   */
+  private static final class LimitedInputStream extends FilterInputStream {
+    private long left;
+    private final long limit;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.left = limit;
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c >= 0) {
+        count(1);
+      }
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long n) throws PayloadTooLargeException {
+      left -= n;
+      if (left < 0) {
+        throw new PayloadTooLargeException(limit);
+      }
+    }
 
-    SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
-    List<ParameterizedJob> jobs =
-        Jenkins.getInstance().getAllItems(ParameterizedJob.class);
-    SecurityContextHolder.setContext(orig);
+    /**
+     * @return true if more than the limit has been read
+     */
+    boolean isExceeded() {
+      return left < 0;
+    }
+  }
 
-    for (ParameterizedJob job : jobs) {
-      String jobName = job.getFullName();
-      LOGGER.log(Level.FINER, "Found job: `{0}`", jobName);
+  /**
+   * Decodes application/x-www-form-urlencoded data while reading it.
+   */
+  static final class FormDecodingInputStream
+      extends FilterInputStream {
+    FormDecodingInputStream(InputStream in) {
+      super(in);
+    }
 
-      Map<TriggerDescriptor, Trigger<?>> triggers = job.getTriggers();
+    @Override
+    public int read() throws IOException {
+      int c = in.read();
+      if (c == '+') {
+        return ' ';
+      }
+      if (c != '%') {
+        return c;
+      }
+      int hi = Character.digit(in.read(), 16);
+      int lo = Character.digit(in.read(), 16);
+      if (hi < 0 || lo < 0) {
+        throw new JsonParseException("Malformed URL encoding", null);
+      }
+      return (hi << 4) | lo;
+    }
 
-      for (Trigger<?> trigger : triggers.values()) {
-        if (trigger instanceof BitbucketBuildTrigger) {
-          LOGGER.log(Level.FINE, "Will consider job: `{0}`", jobName);
-          bbtriggers.add((BitbucketBuildTrigger)trigger);
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = 0;
+      while (n < len) {
+        int c = read();
+        if (c < 0) {
+          break;
         }
+        b[off + n++] = (byte)c;
+      }
+      return n == 0 && len > 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n && read() >= 0) {
+        skipped++;
       }
+      return skipped;
     }
 
-    return bbtriggers;
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void replayJournal() {
+    HookDispatcher.INSTANCE.replay();
   }
 
   private static final Logger LOGGER =
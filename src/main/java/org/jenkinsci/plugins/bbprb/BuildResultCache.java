@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.Job;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.jenkinsci.plugins.bbprb.bitbucket.BuildState;
+
+/**
+ * Results of pull request builds by job, destination repository,
+ * and source and destination commits.
+ *
+ * When a pull request is updated without changing its commits (e. g. its
+ * title is changed), the trigger reports the known successful result
+ * instead of building the same commits again. Failed and stopped results
+ * are kept too, so that the commits are known, but they are built again
+ * on an event. The least recently used results are evicted. The cache is
+ * saved to disk in background.
+ */
+public final class BuildResultCache {
+  private static final int MAX_SIZE =
+      Integer.getInteger(BuildResultCache.class.getName() + ".maxSize", 10000);
+  private static final long SAVE_DELAY = 10;
+
+  public static final BuildResultCache INSTANCE = new BuildResultCache();
+
+  private Map<String, Result> results = null;
+  private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+
+  private BuildResultCache() {
+  }
+
+  public static final class Result {
+    private final String job;
+    private final String repository;
+    private final String sourceCommitHash;
+    private final String destinationCommitHash;
+    private final BuildState state;
+    private final String url;
+
+    private Result(String job, BitbucketCause cause, BuildState state,
+                   String url) {
+      this.job = job;
+      this.repository = cause.getDestinationRepository();
+      this.sourceCommitHash = cause.getSourceCommitHash();
+      this.destinationCommitHash = cause.getDestinationCommitHash();
+      this.state = state;
+      this.url = url;
+    }
+
+    public BuildState getState() {
+      return this.state;
+    }
+
+    /**
+     * @return the build's URL relative to Jenkins root
+     */
+    public String getUrl() {
+      return this.url;
+    }
+
+    private String getKey() {
+      return key(job, repository, sourceCommitHash, destinationCommitHash);
+    }
+  }
+
+  public Result get(Job<?, ?> job, BitbucketCause cause) {
+    synchronized (this) {
+      return getResults().get(key(job, cause));
+    }
+  }
+
+  public void put(Job<?, ?> job, BitbucketCause cause, BuildState state,
+                  String url) {
+    Result result = new Result(job.getFullName(), cause, state, url);
+    synchronized (this) {
+      getResults().put(result.getKey(), result);
+    }
+    scheduleSave();
+  }
+
+  /**
+   * Forgets the result of the commits, e. g. when they are built again
+   * manually.
+   */
+  public void remove(Job<?, ?> job, String repository, String source,
+                     String destination) {
+    Result removed;
+    synchronized (this) {
+      removed = getResults().remove(
+          key(job.getFullName(), repository, source, destination));
+    }
+    if (removed != null) {
+      scheduleSave();
+    }
+  }
+
+  private void scheduleSave() {
+    if (saveScheduled.compareAndSet(false, true)) {
+      Timer.get().schedule(() -> {
+        saveScheduled.set(false);
+        save();
+      }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+  }
+
+  private static String key(Job<?, ?> job, BitbucketCause cause) {
+    return key(job.getFullName(), cause.getDestinationRepository(),
+               cause.getSourceCommitHash(), cause.getDestinationCommitHash());
+  }
+
+  private static String key(String job, String repository, String source,
+                            String destination) {
+    return job + "\n" + repository + "\n" + source + "\n" + destination;
+  }
+
+  private Map<String, Result> getResults() {
+    if (results == null) {
+      results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+          return size() > MAX_SIZE;
+        }
+      };
+      XmlFile file = getConfigFile();
+      if (file != null && file.exists()) {
+        try {
+          for (Result result : (Result[])file.read()) {
+            results.put(result.getKey(), result);
+          }
+          LOGGER.log(Level.FINE, "Loaded {0} build results", results.size());
+        } catch (IOException | ClassCastException e) {
+          LOGGER.log(Level.WARNING, "Failed to load build results", e);
+        }
+      }
+    }
+    return results;
+  }
+
+  private void save() {
+    XmlFile file = getConfigFile();
+    if (file == null) {
+      return;
+    }
+    Result[] snapshot;
+    synchronized (this) {
+      // Least recently used first, so that the order survives loading.
+      snapshot = getResults().values().toArray(new Result[0]);
+    }
+    try {
+      file.write(snapshot);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save build results", e);
+    }
+  }
+
+  @Terminator
+  public static void shutdown() {
+    INSTANCE.save();
+  }
+
+  private static XmlFile getConfigFile() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+    return new XmlFile(Jenkins.XSTREAM,
+                       new File(jenkins.getRootDir(),
+                                BuildResultCache.class.getName() + ".xml"));
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(BuildResultCache.class.getName());
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keys of recently accepted web-hook deliveries.
+ *
+ * Bitbucket retries deliveries, and several web-hooks may deliver the same
+ * event. A key is remembered for a limited time, and the number of keys
+ * is bounded. The cache does not lock on lookups.
+ *
+ * The poller shares the cache with the web-hook, so that it does not
+ * handle again the commits of a pull request delivered recently.
+ */
+final class DeliveryCache {
+  private static final long WINDOW = TimeUnit.SECONDS.toMillis(Long.getLong(
+      DeliveryCache.class.getName() + ".window", 600));
+  private static final int MAX_SIZE =
+      Integer.getInteger(DeliveryCache.class.getName() + ".maxSize", 100000);
+
+  static final DeliveryCache INSTANCE = new DeliveryCache();
+
+  private final long window;
+  private final int maxSize;
+  private final ConcurrentMap<String, Long> seen = new ConcurrentHashMap<>();
+  private final AtomicBoolean purging = new AtomicBoolean(false);
+
+  DeliveryCache() {
+    this(WINDOW, MAX_SIZE);
+  }
+
+  /**
+   * @param window milliseconds to remember a key for
+   * @param maxSize the number of keys to remember at most
+   */
+  DeliveryCache(long window, int maxSize) {
+    this.window = window;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Remembers the key.
+   *
+   * @return false if the key has been seen within the window
+   */
+  boolean add(String key) {
+    long now = System.currentTimeMillis();
+    Long last = seen.putIfAbsent(key, now);
+    if (last == null) {
+      if (seen.size() > maxSize) {
+        purge(now);
+      }
+      return true;
+    }
+    if (now - last > window) {
+      return seen.replace(key, last, now);
+    }
+    return false;
+  }
+
+  /**
+   * Forgets the key, e. g. when the delivery is rejected and will be
+   * retried.
+   */
+  void remove(String key) {
+    seen.remove(key);
+  }
+
+  /**
+   * @return the key of the pull request with its source and destination
+   *     commits
+   */
+  static String commitKey(PullRequest pr) {
+    return pr.getDestinationRepository() + "#" + pr.getId() + "@" +
+        pr.getSourceCommitHash() + ".." + pr.getDestinationCommitHash();
+  }
+
+  int size() {
+    return seen.size();
+  }
+
+  private void purge(long now) {
+    if (!purging.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      seen.values().removeIf(time -> now - time > window);
+      // Still too many: forget arbitrary keys, leaving some room
+      // to not purge on every new key.
+      Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+      while (seen.size() > maxSize - maxSize / 10 && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+      LOGGER.log(Level.FINE, "Purged delivery cache, {0} keys left",
+                 seen.size());
+    } finally {
+      purging.set(false);
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(DeliveryCache.class.getName());
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Marks a journaled event as done in the {@link HookJournal} once all
+ * work started by the event is finished, e. g. a build waiting for
+ * the quiet period is scheduled.
+ *
+ * The event is held once by its dispatcher, and once more by everything
+ * finishing later. It is done when all holds are released.
+ */
+final class EventCompletion {
+  /**
+   * Completion of events which are not journaled.
+   */
+  static final EventCompletion NONE = new EventCompletion(-1);
+
+  private final long id;
+  private final AtomicInteger holds = new AtomicInteger(1);
+
+  /**
+   * @param id the event id in the journal, or -1 if not journaled
+   */
+  EventCompletion(long id) {
+    this.id = id;
+  }
+
+  /**
+   * Delays completion until a matching {@link #release()}.
+   */
+  EventCompletion hold() {
+    if (this.id >= 0) {
+      this.holds.incrementAndGet();
+    }
+    return this;
+  }
+
+  void release() {
+    if (this.id >= 0 && this.holds.decrementAndGet() == 0) {
+      HookDispatcher.done(this.id);
+    }
+  }
+}
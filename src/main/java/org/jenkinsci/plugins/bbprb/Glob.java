@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.util.regex.Pattern;
+
+/**
+ * Shell-like patterns: `*` matches any characters, including `/`,
+ * and `?` matches any single character.
+ */
+final class Glob {
+  private Glob() {
+  }
+
+  static Pattern compile(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > start) {
+          regex.append(Pattern.quote(glob.substring(start, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    if (start < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(start)));
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
+
+/**
+ * Handles pull request events off the HTTP request thread.
+ *
+ * The queue is bounded: when it is full, events are rejected and
+ * Bitbucket is expected to deliver them again later. Accepted events
+ * are marked as done in the {@link HookJournal} once handled.
+ */
+final class HookDispatcher {
+  private static final int THREADS =
+      Integer.getInteger(HookDispatcher.class.getName() + ".threads", 2);
+  private static final int QUEUE_SIZE =
+      Integer.getInteger(HookDispatcher.class.getName() + ".queueSize", 1000);
+
+  static final HookDispatcher INSTANCE = new HookDispatcher();
+
+  private final ThreadPoolExecutor executor;
+  private volatile boolean replayed = false;
+
+  private HookDispatcher() {
+    this.executor = new ThreadPoolExecutor(
+        THREADS, THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+        new NamingThreadFactory(new DaemonThreadFactory(), "bbprb-hook"));
+    this.executor.allowCoreThreadTimeOut(true);
+    Metrics.gauge("bbprb_event_queue_depth", "Pull request events queued",
+                  this::getQueueDepth);
+  }
+
+  /**
+   * @param id the event id in the journal, or -1 if not journaled
+   * @return false if the queue is full and the event was not accepted
+   */
+  boolean submit(long id, String event, PullRequest pr) {
+    if (execute(id, event, pr)) {
+      return true;
+    }
+    Metrics.EVENTS_DROPPED.inc("queue_full");
+    LOGGER.log(Level.WARNING, "Queue is full, rejected `{0}` for `{1}`",
+               new Object[] {event, pr.getDestinationRepository()});
+    return false;
+  }
+
+  /**
+   * Queues the event, or handles it on the calling thread if the queue
+   * is full. This slows down the caller instead of rejecting the event.
+   */
+  void submitOrRun(long id, String event, PullRequest pr) {
+    if (!execute(id, event, pr)) {
+      run(id, event, pr, System.nanoTime());
+    }
+  }
+
+  private boolean execute(final long id, final String event,
+                          final PullRequest pr) {
+    final long accepted = System.nanoTime();
+    try {
+      executor.execute(() -> run(id, event, pr, accepted));
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  private void run(long id, String event, PullRequest pr, long accepted) {
+    EventCompletion completion = new EventCompletion(id);
+    try {
+      dispatch(event, pr, completion);
+    } catch (RuntimeException e) {
+      Metrics.EVENTS_DROPPED.inc("error");
+      LOGGER.log(Level.WARNING, "Failed to handle `" + event + "`", e);
+    } finally {
+      // Triggers may still hold the event, e. g. for the quiet period.
+      completion.release();
+      record(accepted);
+    }
+  }
+
+  /**
+   * Handles the events left unfinished before Jenkins restarted.
+   * Their commits are remembered as delivered, so that neither
+   * the poller nor a late delivery handles them again.
+   */
+  void replay() {
+    HookJournal journal = HookJournal.get();
+    if (journal == null) {
+      this.replayed = true;
+      return;
+    }
+    try {
+      for (HookJournal.Entry entry : journal.drainUnfinished()) {
+        LOGGER.log(Level.INFO, "Replaying event #{0}: `{1}`",
+                   new Object[] {entry.id, entry.event});
+        try {
+          PullRequest pr = PullRequest.parse(entry.body);
+          DeliveryCache.INSTANCE.add(DeliveryCache.commitKey(pr));
+          // Nobody would deliver it again, so never reject it.
+          submitOrRun(entry.id, entry.event, pr);
+        } catch (IOException | RuntimeException e) {
+          Metrics.EVENTS_DROPPED.inc("replay");
+          LOGGER.log(Level.WARNING, "Failed to replay event #" + entry.id,
+                     e);
+          done(entry.id);
+        }
+      }
+    } finally {
+      this.replayed = true;
+    }
+  }
+
+  /**
+   * @return true once the events of the journal have been queued
+   */
+  boolean isReplayed() {
+    return this.replayed;
+  }
+
+  private static void dispatch(String event, PullRequest pr,
+                               EventCompletion completion) {
+    for (BitbucketBuildTrigger trigger :
+         TriggerRegistry.lookup(pr.getDestinationRepository())) {
+      Metrics.TRIGGER_MATCHES.inc();
+      trigger.handlePR(event, pr, completion);
+    }
+  }
+
+  static void done(long id) {
+    HookJournal journal = HookJournal.get();
+    if (id >= 0 && journal != null) {
+      journal.done(id);
+    }
+  }
+
+  private void record(long accepted) {
+    long latency = System.nanoTime() - accepted;
+    Metrics.EVENT_LATENCY.observe(latency);
+    LOGGER.log(Level.FINE, "Handled event in {0} ms, queue depth: {1}",
+               new Object[] {TimeUnit.NANOSECONDS.toMillis(latency),
+                             getQueueDepth()});
+  }
+
+  int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(HookDispatcher.class.getName());
+}
@@ -0,0 +1,371 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only journal of accepted web-hook events.
+ *
+ * An event is written to the journal before the web-hook responds,
+ * and is marked as done after it has been handled. Events not marked
+ * as done are handled again when Jenkins starts.
+ *
+ * The journal consists of memory-mapped segment files. Concurrent
+ * writers share a single fsync (group commit), and a segment is deleted
+ * once all its events are done. An event pending for too long, e. g.
+ * lost by a bug, is marked as done with a warning, so that it does not
+ * keep all the later segments forever. Only the current segment stays
+ * mapped, others are left to the garbage collector to unmap.
+ *
+ * A record is: length (4 bytes), CRC32 (4 bytes), type (1 byte),
+ * event id (8 bytes) and data. The length is written last, so that
+ * a partially written record is never read back.
+ */
+final class HookJournal {
+  private static final boolean DISABLED =
+      Boolean.getBoolean(HookJournal.class.getName() + ".disabled");
+  private static final int SEGMENT_SIZE = Integer.getInteger(
+      HookJournal.class.getName() + ".segmentSize", 4 * 1024 * 1024);
+  // Seconds an event may stay pending before it is marked as done.
+  private static final int PENDING_TIMEOUT = Integer.getInteger(
+      HookJournal.class.getName() + ".pendingTimeout", 3600);
+  private static final String SUFFIX = ".seg";
+
+  private static final byte ACCEPTED = 1;
+  private static final byte DONE = 2;
+  private static final int HEADER = 4 + 4;
+  private static final int PREFIX = 1 + 8;
+
+  private static HookJournal instance;
+  private static boolean opened = false;
+
+  /**
+   * @return the journal, or null if it is disabled or cannot be opened
+   */
+  static synchronized HookJournal get() {
+    if (!opened) {
+      opened = true;
+      Jenkins jenkins = Jenkins.getInstance();
+      if (DISABLED || jenkins == null) {
+        return null;
+      }
+      File dir = new File(jenkins.getRootDir(), HookJournal.class.getName());
+      try {
+        instance = new HookJournal(dir);
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "Failed to open the journal in " + dir, e);
+      }
+    }
+    return instance;
+  }
+
+  static final class Entry {
+    final long id;
+    final String event;
+    final String body;
+
+    Entry(long id, String event, String body) {
+      this.id = id;
+      this.event = event;
+      this.body = body;
+    }
+  }
+
+  private static final class Segment {
+    final File file;
+    // Null once the segment is not written or read any more.
+    MappedByteBuffer buffer;
+    int outstanding = 0;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  private static final class Pending {
+    final Segment segment;
+    // System.nanoTime() of acceptance or recovery.
+    final long since;
+
+    Pending(Segment segment, long since) {
+      this.segment = segment;
+      this.since = since;
+    }
+  }
+
+  private final File dir;
+  private final long pendingTimeout;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  // In the order of acceptance, the oldest first.
+  private final Map<Long, Pending> outstanding = new LinkedHashMap<>();
+  private final List<Entry> unfinished = new ArrayList<>();
+  private Segment current = null;
+  private long nextId = 0;
+  private long nextSegment = 0;
+
+  // Records appended and records known to be on disk.
+  private long written = 0;
+  private long synced = 0;
+  private final Object syncLock = new Object();
+
+  HookJournal(File dir) throws IOException {
+    this(dir, TimeUnit.SECONDS.toNanos(PENDING_TIMEOUT));
+  }
+
+  /**
+   * @param pendingTimeout nanoseconds an event may stay pending
+   */
+  HookJournal(File dir, long pendingTimeout) throws IOException {
+    this.dir = dir;
+    this.pendingTimeout = pendingTimeout;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    recover();
+  }
+
+  /**
+   * Writes the event to the journal and waits until it is on disk.
+   *
+   * @return the event id
+   */
+  long accept(String event, String body) throws IOException {
+    long id;
+    long seq;
+    byte[] data = (event + "\n" + body).getBytes(StandardCharsets.UTF_8);
+    synchronized (this) {
+      id = nextId++;
+      seq = append(ACCEPTED, id, data);
+      current.outstanding++;
+      outstanding.put(id, new Pending(current, System.nanoTime()));
+      expire();
+    }
+    sync(seq);
+    return id;
+  }
+
+  /**
+   * Marks the event as handled. This is not synced to disk immediately:
+   * in the worst case the event is handled once again after restart.
+   */
+  synchronized void done(long id) {
+    if (markDone(id)) {
+      cleanup();
+    }
+  }
+
+  private boolean markDone(long id) {
+    Pending pending = outstanding.remove(id);
+    if (pending == null) {
+      return false;
+    }
+    try {
+      append(DONE, id, new byte[0]);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to mark event #" + id + " as done", e);
+    }
+    pending.segment.outstanding--;
+    return true;
+  }
+
+  /**
+   * Marks the events pending for too long as done.
+   */
+  private void expire() {
+    long now = System.nanoTime();
+    List<Long> expired = new ArrayList<>();
+    for (Map.Entry<Long, Pending> e : outstanding.entrySet()) {
+      if (now - e.getValue().since < this.pendingTimeout) {
+        break;
+      }
+      expired.add(e.getKey());
+    }
+    for (long id : expired) {
+      LOGGER.log(Level.WARNING,
+                 "Event #{0} has been pending for too long, marking as done",
+                 id);
+      markDone(id);
+    }
+    if (!expired.isEmpty()) {
+      cleanup();
+    }
+  }
+
+  /**
+   * @return events not handled before the last shutdown,
+   *         each one is returned only once
+   */
+  synchronized List<Entry> drainUnfinished() {
+    List<Entry> entries = new ArrayList<>(unfinished);
+    unfinished.clear();
+    return entries;
+  }
+
+  private long append(byte type, long id, byte[] data) throws IOException {
+    int length = PREFIX + data.length;
+    if (current == null || current.buffer.remaining() < HEADER + length) {
+      roll(HEADER + length);
+    }
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.put(type).putLong(id).put(data);
+    CRC32 crc = new CRC32();
+    crc.update(record.array());
+
+    MappedByteBuffer buffer = current.buffer;
+    int position = buffer.position();
+    buffer.position(position + HEADER);
+    buffer.put(record.array());
+    buffer.putInt(position + 4, (int)crc.getValue());
+    buffer.putInt(position, length);
+    return ++written;
+  }
+
+  private void sync(long seq) {
+    synchronized (syncLock) {
+      if (synced >= seq) {
+        return;
+      }
+      long target;
+      MappedByteBuffer buffer;
+      synchronized (this) {
+        target = written;
+        buffer = current.buffer;
+      }
+      buffer.force();
+      synced = target;
+    }
+  }
+
+  private void roll(int minSize) throws IOException {
+    if (current != null) {
+      // Records of older segments are never synced by sync().
+      current.buffer.force();
+      current.buffer = null;
+    }
+    File file = new File(dir, String.format("%020d", nextSegment++) + SUFFIX);
+    int size = Math.max(SEGMENT_SIZE, minSize);
+    try (FileChannel channel = FileChannel.open(
+             file.toPath(), StandardOpenOption.CREATE_NEW,
+             StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      current = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE,
+                                              0, size));
+    }
+    segments.addLast(current);
+    LOGGER.log(Level.FINE, "Started segment {0}", file);
+    cleanup();
+  }
+
+  /**
+   * Deletes the oldest segments with all events done. A segment is never
+   * deleted before older ones, because it may mark their events as done.
+   */
+  private void cleanup() {
+    while (!segments.isEmpty()) {
+      Segment oldest = segments.peekFirst();
+      if (oldest == current || oldest.outstanding > 0) {
+        break;
+      }
+      segments.removeFirst();
+      if (!oldest.file.delete()) {
+        LOGGER.log(Level.WARNING, "Could not delete {0}", oldest.file);
+      }
+    }
+  }
+
+  private void recover() throws IOException {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      throw new IOException("Could not list " + dir);
+    }
+    Arrays.sort(files);
+    Map<Long, Entry> accepted = new LinkedHashMap<>();
+    Map<Long, Segment> owners = new LinkedHashMap<>();
+    for (File file : files) {
+      String name = file.getName();
+      String number = name.substring(0, name.length() - SUFFIX.length());
+      try {
+        nextSegment = Math.max(nextSegment, Long.parseLong(number) + 1);
+      } catch (NumberFormatException e) {
+        LOGGER.log(Level.WARNING, "Unexpected file {0}", file);
+        continue;
+      }
+      Segment segment;
+      try (FileChannel channel =
+               FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        segment = new Segment(
+            file, channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+      }
+      segments.addLast(segment);
+      read(segment, accepted, owners);
+      // The entries are copied out.
+      segment.buffer = null;
+    }
+    long now = System.nanoTime();
+    for (Entry entry : accepted.values()) {
+      Segment segment = owners.get(entry.id);
+      segment.outstanding++;
+      outstanding.put(entry.id, new Pending(segment, now));
+      unfinished.add(entry);
+    }
+    if (!unfinished.isEmpty()) {
+      LOGGER.log(Level.INFO, "Found {0} unfinished events in the journal",
+                 unfinished.size());
+    }
+    roll(0);
+  }
+
+  private void read(Segment segment, Map<Long, Entry> accepted,
+                    Map<Long, Segment> owners) {
+    MappedByteBuffer buffer = segment.buffer;
+    while (buffer.remaining() >= HEADER + PREFIX) {
+      int length = buffer.getInt();
+      int crc = buffer.getInt();
+      if (length < PREFIX || length > buffer.remaining()) {
+        break;
+      }
+      byte[] record = new byte[length];
+      buffer.get(record);
+      CRC32 actual = new CRC32();
+      actual.update(record);
+      if ((int)actual.getValue() != crc) {
+        LOGGER.log(Level.WARNING, "Corrupted record in {0}", segment.file);
+        break;
+      }
+      ByteBuffer r = ByteBuffer.wrap(record);
+      byte type = r.get();
+      long id = r.getLong();
+      nextId = Math.max(nextId, id + 1);
+      if (type == ACCEPTED) {
+        String data = new String(record, PREFIX, length - PREFIX,
+                                 StandardCharsets.UTF_8);
+        int nl = data.indexOf('\n');
+        accepted.put(id, new Entry(id, data.substring(0, nl),
+                                   data.substring(nl + 1)));
+        owners.put(id, segment);
+      } else if (type == DONE) {
+        accepted.remove(id);
+      }
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(HookJournal.class.getName());
+}
@@ -0,0 +1,125 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches names, e. g. of repositories or branches, against a list of
+ * exact names, globs (with `*` or `?`) and regular expressions (starting
+ * with `^`), separated by commas or white space. A regular expression
+ * ends at white space only, so that it may contain commas, e. g.
+ * `^team/(a|b){1,3}$`; a comma right after it is still a separator.
+ *
+ * The list is compiled once: exact names are looked up in a set, and
+ * only the patterns are tried one by one.
+ */
+final class NameMatcher {
+  // A regular expression up to white space, or a name or a glob.
+  private static final Pattern ENTRY = Pattern.compile("\\^\\S*|[^\\s,]+");
+
+  private final Set<String> names = new HashSet<>();
+  private final List<Pattern> patterns = new ArrayList<>();
+  // Owners (text before `/`) all the globs start with, null if
+  // some pattern may match any owner.
+  private Set<String> owners = new HashSet<>();
+
+  /**
+   * @param spec the list; null or empty matches nothing
+   */
+  NameMatcher(String spec) {
+    if (spec == null) {
+      return;
+    }
+    Matcher entries = ENTRY.matcher(spec);
+    while (entries.find()) {
+      String entry = entries.group();
+      if (!entry.startsWith("^")) {
+        add(entry);
+      } else if (entry.endsWith(",") && !entry.endsWith("\\,")) {
+        addRegex(entry.substring(0, entry.length() - 1));
+      } else {
+        addRegex(entry);
+      }
+    }
+  }
+
+  private void addRegex(String regex) {
+    try {
+      patterns.add(Pattern.compile(regex));
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException(
+          "Malformed regular expression `" + regex + "`", e);
+    }
+    owners = null;
+  }
+
+  private void add(String entry) {
+    if (entry.indexOf('*') >= 0 || entry.indexOf('?') >= 0) {
+      patterns.add(Glob.compile(entry));
+      addOwner(entry);
+    } else {
+      names.add(entry);
+    }
+  }
+
+  private void addOwner(String glob) {
+    if (owners == null) {
+      return;
+    }
+    int wildcard = glob.replace('?', '*').indexOf('*');
+    int slash = glob.indexOf('/');
+    if (slash < 0 || slash > wildcard) {
+      owners = null;
+    } else {
+      owners.add(glob.substring(0, slash));
+    }
+  }
+
+  boolean isEmpty() {
+    return names.isEmpty() && patterns.isEmpty();
+  }
+
+  /**
+   * @return true if the list is empty or the name matches
+   */
+  boolean matchesOrEmpty(String name) {
+    return isEmpty() || matches(name);
+  }
+
+  boolean matches(String name) {
+    if (name == null) {
+      return false;
+    }
+    if (names.contains(name)) {
+      return true;
+    }
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  Set<String> getNames() {
+    return Collections.unmodifiableSet(names);
+  }
+
+  boolean hasPatterns() {
+    return !patterns.isEmpty();
+  }
+
+  /**
+   * @return owners the patterns are limited to, or null if any owner
+   *     may match
+   */
+  Set<String> getOwners() {
+    return owners == null ? null : Collections.unmodifiableSet(owners);
+  }
+}
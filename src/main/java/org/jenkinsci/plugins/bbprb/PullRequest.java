@@ -0,0 +1,240 @@
+package org.jenkinsci.plugins.bbprb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * The fields of a Bitbucket pull request used by this plugin.
+ *
+ * Payloads are parsed with a streaming parser: only the needed fields
+ * are kept, everything else is skipped without building a tree.
+ */
+public final class PullRequest {
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private static final String ID = "id";
+  private static final String TITLE = "title";
+  private static final String AUTHOR = "author.display_name";
+  private static final String SOURCE_BRANCH = "source.branch.name";
+  private static final String SOURCE_COMMIT = "source.commit.hash";
+  private static final String SOURCE_REPOSITORY = "source.repository.full_name";
+  private static final String DESTINATION_BRANCH = "destination.branch.name";
+  private static final String DESTINATION_COMMIT = "destination.commit.hash";
+  private static final String DESTINATION_REPOSITORY =
+      "destination.repository.full_name";
+  private static final String UPDATED_ON = "updated_on";
+
+  private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(
+      ID, TITLE, AUTHOR, SOURCE_BRANCH, SOURCE_COMMIT, SOURCE_REPOSITORY,
+      DESTINATION_BRANCH, DESTINATION_COMMIT, DESTINATION_REPOSITORY,
+      UPDATED_ON));
+  // Fields which may be missing, e. g. in payloads written by toJson().
+  private static final Set<String> OPTIONAL =
+      new HashSet<>(Arrays.asList(TITLE, UPDATED_ON));
+  private static final Set<String> OBJECTS = new HashSet<>(Arrays.asList(
+      "author", "source", "source.branch", "source.commit",
+      "source.repository", "destination", "destination.branch",
+      "destination.commit", "destination.repository"));
+
+  private final String id;
+  private final String title;
+  private final String author;
+  private final String sourceBranch;
+  private final String sourceCommitHash;
+  private final String sourceRepository;
+  private final String destinationBranch;
+  private final String destinationCommitHash;
+  private final String destinationRepository;
+  private final String updatedOn;
+
+  private PullRequest(Map<String, String> fields) {
+    this.id = fields.get(ID);
+    this.title = fields.get(TITLE);
+    this.author = fields.get(AUTHOR);
+    this.sourceBranch = fields.get(SOURCE_BRANCH);
+    this.sourceCommitHash = fields.get(SOURCE_COMMIT);
+    this.sourceRepository = fields.get(SOURCE_REPOSITORY);
+    this.destinationBranch = fields.get(DESTINATION_BRANCH);
+    this.destinationCommitHash = fields.get(DESTINATION_COMMIT);
+    this.destinationRepository = fields.get(DESTINATION_REPOSITORY);
+    this.updatedOn = fields.get(UPDATED_ON);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getAuthor() {
+    return author;
+  }
+
+  public String getSourceBranch() {
+    return sourceBranch;
+  }
+
+  public String getSourceCommitHash() {
+    return sourceCommitHash;
+  }
+
+  public String getSourceRepository() {
+    return sourceRepository;
+  }
+
+  public String getDestinationBranch() {
+    return destinationBranch;
+  }
+
+  public String getDestinationCommitHash() {
+    return destinationCommitHash;
+  }
+
+  public String getDestinationRepository() {
+    return destinationRepository;
+  }
+
+  /**
+   * @return the time of the last update in ISO 8601, or null if unknown
+   */
+  public String getUpdatedOn() {
+    return updatedOn;
+  }
+
+  /**
+   * Reads the `pullrequest` object of a web-hook payload. The rest of the
+   * input is not read.
+   */
+  public static PullRequest parse(InputStream in) throws IOException {
+    return parse(FACTORY.createJsonParser(in));
+  }
+
+  public static PullRequest parse(String payload) throws IOException {
+    return parse(FACTORY.createJsonParser(payload));
+  }
+
+  private static PullRequest parse(JsonParser parser) throws IOException {
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected an object",
+                                     parser.getCurrentLocation());
+      }
+      return readPayload(parser);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Reads the `pullrequest` object of a payload embedded in other JSON,
+   * e. g. in a batch of events. The parser must be at the start of
+   * the payload. The rest of the payload is not read.
+   */
+  static PullRequest readPayload(JsonParser parser) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.START_OBJECT &&
+          "pullrequest".equals(name)) {
+        return read(parser);
+      }
+      parser.skipChildren();
+    }
+    throw new JsonParseException("Missing `pullrequest`",
+                                 parser.getCurrentLocation());
+  }
+
+  static JsonParser createParser(String json) throws IOException {
+    return FACTORY.createJsonParser(json);
+  }
+
+  /**
+   * Reads a pull request object, e. g. from a list returned by the API.
+   * The parser must be at the start of the object.
+   */
+  static PullRequest read(JsonParser parser) throws IOException {
+    Map<String, String> fields = new HashMap<>();
+    collect(parser, "", fields);
+    for (String field : FIELDS) {
+      if (!OPTIONAL.contains(field) && fields.get(field) == null) {
+        throw new JsonParseException("Missing `" + field + "`",
+                                     parser.getCurrentLocation());
+      }
+    }
+    return new PullRequest(fields);
+  }
+
+  private static void collect(JsonParser parser, String prefix,
+                              Map<String, String> fields) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String path = prefix + parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT && OBJECTS.contains(path)) {
+        collect(parser, path + ".", fields);
+      } else if (token.isScalarValue() && FIELDS.contains(path)) {
+        fields.put(path,
+                   token == JsonToken.VALUE_NULL ? null : parser.getText());
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * @return a minimal web-hook payload with this pull request
+   */
+  public String toJson() throws IOException {
+    StringWriter out = new StringWriter();
+    JsonGenerator g = FACTORY.createJsonGenerator(out);
+    g.writeStartObject();
+    g.writeObjectFieldStart("pullrequest");
+    g.writeStringField(ID, id);
+    g.writeStringField(TITLE, title);
+    g.writeObjectFieldStart("author");
+    g.writeStringField("display_name", author);
+    g.writeEndObject();
+    writeEndpoint(g, "source", sourceBranch, sourceCommitHash,
+                  sourceRepository);
+    writeEndpoint(g, "destination", destinationBranch, destinationCommitHash,
+                  destinationRepository);
+    g.writeEndObject();
+    g.writeEndObject();
+    g.close();
+    return out.toString();
+  }
+
+  private static void writeEndpoint(JsonGenerator g, String name,
+                                    String branch, String commit,
+                                    String repository) throws IOException {
+    g.writeObjectFieldStart(name);
+    g.writeObjectFieldStart("branch");
+    g.writeStringField("name", branch);
+    g.writeEndObject();
+    g.writeObjectFieldStart("commit");
+    g.writeStringField("hash", commit);
+    g.writeEndObject();
+    g.writeObjectFieldStart("repository");
+    g.writeStringField("full_name", repository);
+    g.writeEndObject();
+    g.writeEndObject();
+  }
+
+  @Override
+  public String toString() {
+    return destinationRepository + "#" + id + " " + sourceRepository + ":" +
+        sourceBranch + "@" + sourceCommitHash + " -> " + destinationBranch +
+        "@" + destinationCommitHash;
+  }
+}
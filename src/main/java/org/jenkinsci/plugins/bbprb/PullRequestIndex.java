@@ -0,0 +1,268 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
+
+/**
+ * Queue items and running builds of each pull request, per job, and
+ * the numbers of running pull request builds per destination repository
+ * and per author.
+ *
+ * This lets the trigger cancel outdated builds, and the scheduler limit
+ * concurrent builds, without looking through the whole queue and all
+ * the builds.
+ */
+public final class PullRequestIndex {
+  private static final ConcurrentMap<Key, Set<Long>> items =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<Key, Set<Run<?, ?>>> builds =
+      new ConcurrentHashMap<>();
+  // Causes of the builds which left the queue to run, by the id of their
+  // queue item, until the builds complete.
+  private static final ConcurrentMap<Long, BitbucketCause> running =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Integer> runningByRepository =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Integer> runningByAuthor =
+      new ConcurrentHashMap<>();
+
+  private PullRequestIndex() {
+  }
+
+  /**
+   * @return ids of the queue items of the pull request
+   */
+  static List<Long> getQueueItems(Job<?, ?> job, BitbucketCause cause) {
+    Set<Long> ids = items.get(new Key(job, cause));
+    return ids == null ? Collections.<Long>emptyList() : new ArrayList<>(ids);
+  }
+
+  static List<Run<?, ?>> getBuilds(Job<?, ?> job, BitbucketCause cause) {
+    Set<Run<?, ?>> runs = builds.get(new Key(job, cause));
+    return runs == null ? Collections.<Run<?, ?>>emptyList()
+                        : new ArrayList<>(runs);
+  }
+
+  /**
+   * @return the number of running builds of pull requests to
+   *     the repository
+   */
+  static int countRunningByRepository(String repository) {
+    return runningByRepository.getOrDefault(String.valueOf(repository), 0);
+  }
+
+  /**
+   * @return the number of running builds of pull requests by the author
+   */
+  static int countRunningByAuthor(String author) {
+    return runningByAuthor.getOrDefault(String.valueOf(author), 0);
+  }
+
+  private static void started(long id, BitbucketCause cause) {
+    if (running.putIfAbsent(id, cause) == null) {
+      runningByRepository.merge(
+          String.valueOf(cause.getDestinationRepository()), 1, Integer::sum);
+      runningByAuthor.merge(String.valueOf(cause.getPullRequestAuthor()), 1,
+                            Integer::sum);
+    }
+  }
+
+  private static void finished(long id) {
+    BitbucketCause cause = running.remove(id);
+    if (cause != null) {
+      runningByRepository.computeIfPresent(
+          String.valueOf(cause.getDestinationRepository()),
+          (k, n) -> n > 1 ? n - 1 : null);
+      runningByAuthor.computeIfPresent(
+          String.valueOf(cause.getPullRequestAuthor()),
+          (k, n) -> n > 1 ? n - 1 : null);
+    }
+  }
+
+  private static <T> void add(ConcurrentMap<Key, Set<T>> map, Key key,
+                              T value) {
+    map.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(value);
+  }
+
+  private static <T> void remove(ConcurrentMap<Key, Set<T>> map, Key key,
+                                 T value) {
+    map.computeIfPresent(key, (k, set) -> {
+      set.remove(value);
+      return set.isEmpty() ? null : set;
+    });
+  }
+
+  private static Key getKey(Queue.Item item) {
+    if (!(item.task instanceof Job)) {
+      return null;
+    }
+    BitbucketCause cause = getCause(item.getCauses());
+    return cause == null ? null : new Key((Job<?, ?>)item.task, cause);
+  }
+
+  private static Key getKey(Run<?, ?> run) {
+    BitbucketCause cause = run.getCause(BitbucketCause.class);
+    return cause == null ? null : new Key(run.getParent(), cause);
+  }
+
+  static BitbucketCause getCause(List<Cause> causes) {
+    for (Cause cause : causes) {
+      if (cause instanceof BitbucketCause) {
+        return (BitbucketCause)cause;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Picks up the queue and the builds which were there before
+   * the listeners started to work, e. g. after restart.
+   */
+  @Initializer(after = InitMilestone.COMPLETED)
+  public static void init() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return;
+    }
+    for (Queue.Item item : jenkins.getQueue().getItems()) {
+      Key key = getKey(item);
+      if (key != null) {
+        add(items, key, item.getId());
+      }
+    }
+    for (Computer computer : jenkins.getComputers()) {
+      List<Executor> executors = new ArrayList<>(computer.getExecutors());
+      executors.addAll(computer.getOneOffExecutors());
+      for (Executor executor : executors) {
+        Queue.Executable executable = executor.getCurrentExecutable();
+        if (executable instanceof Run) {
+          Run<?, ?> run = (Run<?, ?>)executable;
+          Key key = getKey(run);
+          if (key != null) {
+            add(builds, key, run);
+            started(run.getQueueId(), run.getCause(BitbucketCause.class));
+          }
+        }
+      }
+    }
+    LOGGER.log(Level.FINE, "Indexed {0} queued and {1} running PRs",
+               new Object[] {items.size(), builds.size()});
+  }
+
+  @Extension
+  public static final class QueueListenerImpl extends QueueListener {
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem item) {
+      Key key = getKey(item);
+      if (key != null) {
+        add(items, key, item.getId());
+      }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+      Key key = getKey(item);
+      if (key != null) {
+        remove(items, key, item.getId());
+        if (!item.isCancelled()) {
+          // Counted from now on, the build may take a while to start.
+          started(item.getId(), getCause(item.getCauses()));
+          Metrics.BUILD_QUEUE.observe(TimeUnit.MILLISECONDS.toNanos(
+              System.currentTimeMillis() - item.getInQueueSince()));
+        }
+      }
+    }
+  }
+
+  @Extension
+  public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+    @Override
+    public void onStarted(Run<?, ?> run, TaskListener listener) {
+      Key key = getKey(run);
+      if (key != null) {
+        add(builds, key, run);
+      }
+    }
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      Key key = getKey(run);
+      if (key != null) {
+        remove(builds, key, run);
+        finished(run.getQueueId());
+      }
+    }
+
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+      Key key = getKey(run);
+      if (key != null) {
+        remove(builds, key, run);
+        finished(run.getQueueId());
+      }
+    }
+  }
+
+  /**
+   * Builds of the same pull request have the same destination and source
+   * repositories and pull request id: a job may build pull requests of
+   * several repositories.
+   */
+  private static final class Key {
+    private final String job;
+    private final String destinationRepository;
+    private final String sourceRepository;
+    private final String pullRequestId;
+
+    Key(Job<?, ?> job, BitbucketCause cause) {
+      this.job = job.getFullName();
+      this.destinationRepository = cause.getDestinationRepository();
+      this.sourceRepository = cause.getSourceRepository();
+      this.pullRequestId = cause.getPullRequestId();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return Objects.equals(job, k.job) &&
+          Objects.equals(destinationRepository, k.destinationRepository) &&
+          Objects.equals(sourceRepository, k.sourceRepository) &&
+          Objects.equals(pullRequestId, k.pullRequestId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(job, destinationRepository, sourceRepository,
+                          pullRequestId);
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(PullRequestIndex.class.getName());
+}
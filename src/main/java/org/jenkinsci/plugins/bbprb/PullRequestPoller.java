@@ -0,0 +1,249 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import org.jenkinsci.plugins.bbprb.bitbucket.ApiClient;
+
+/**
+ * Polls open pull requests of the repositories of the triggers to build
+ * those whose web-hook events were missed.
+ *
+ * Polling is disabled unless "Poll interval" is set in the global
+ * configuration. Each repository is polled once per interval, at
+ * an offset derived from its name, so that polls of many repositories
+ * are spread over the interval. Only pull requests updated after
+ * the previous poll are listed, and the request is conditional,
+ * so that a poll of a quiet repository is cheap.
+ *
+ * Repositories polled first after start of Jenkins are looked back
+ * a while for events missed during the restart. Repositories of triggers
+ * added later are polled only for updates after they are added, so that
+ * a new trigger does not build all the pull requests open before.
+ */
+@Extension
+public final class PullRequestPoller extends AsyncPeriodicWork {
+  // Seconds between checks for repositories to poll.
+  private static final int TICK =
+      Integer.getInteger(PullRequestPoller.class.getName() + ".tick", 10);
+  // Seconds before the first poll to look for missed events.
+  private static final int LOOKBACK = Integer.getInteger(
+      PullRequestPoller.class.getName() + ".lookback", 3600);
+  // Pages of pull requests read per poll of a repository.
+  private static final int MAX_PAGES =
+      Integer.getInteger(PullRequestPoller.class.getName() + ".maxPages", 10);
+
+  private final Map<String, State> states = new ConcurrentHashMap<>();
+  // Whether repositories have been polled since start of Jenkins.
+  private volatile boolean started;
+
+  private static final class State {
+    long nextPoll;
+    // The latest `updated_on` seen, and the ETag of the request with it.
+    OffsetDateTime watermark;
+    String etag;
+
+    State(long nextPoll, OffsetDateTime watermark) {
+      this.nextPoll = nextPoll;
+      this.watermark = watermark;
+    }
+  }
+
+  public PullRequestPoller() {
+    super("Bitbucket pull requests poller");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.SECONDS.toMillis(TICK);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return;
+    }
+    BitbucketBuildTrigger.BitbucketBuildTriggerDescriptor descriptor =
+        jenkins.getDescriptorByType(
+            BitbucketBuildTrigger.BitbucketBuildTriggerDescriptor.class);
+    int interval = descriptor.getPollInterval();
+    if (interval <= 0) {
+      this.states.clear();
+      return;
+    }
+    // Events of the journal are not known to the triggers until queued.
+    if (!HookDispatcher.INSTANCE.isReplayed()) {
+      return;
+    }
+    long period = TimeUnit.SECONDS.toMillis(interval);
+    long now = System.currentTimeMillis();
+    OffsetDateTime since = OffsetDateTime.now(ZoneOffset.UTC);
+    if (!this.started) {
+      since = since.minusSeconds(LOOKBACK);
+      this.started = true;
+    }
+    Set<String> repositories = TriggerRegistry.getRepositories();
+    this.states.keySet().retainAll(repositories);
+    for (String repository : repositories) {
+      final OffsetDateTime watermark = since;
+      State state = this.states.computeIfAbsent(repository, r -> {
+        long offset = (r.hashCode() & Integer.MAX_VALUE) % period;
+        return new State(now + offset, watermark);
+      });
+      if (state.nextPoll > now) {
+        continue;
+      }
+      state.nextPoll = now + period;
+      try {
+        poll(repository, state);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Failed to poll " + repository, e);
+      }
+    }
+  }
+
+  private void poll(String repository, State state) {
+    ApiClient client = getApiClient(repository);
+    if (client == null) {
+      return;
+    }
+    ApiClient.Response response = client.getPullRequests(
+        repository,
+        DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(state.watermark),
+        state.etag);
+    for (int page = 1; page <= MAX_PAGES; page++) {
+      if (response.isNotModified() || !response.isSuccessful()) {
+        return;
+      }
+      Page result;
+      try {
+        result = Page.parse(response.getBody());
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Malformed list of pull requests of " +
+                                      repository, e);
+        return;
+      }
+      LOGGER.log(Level.FINE, "Polled {0}: {1} pull requests",
+                 new Object[] {repository, result.values.size()});
+      for (PullRequest pr : result.values) {
+        // Skip the commits delivered recently by the web-hook, their
+        // events may still be queued.
+        if (DeliveryCache.INSTANCE.add(DeliveryCache.commitKey(pr))) {
+          for (BitbucketBuildTrigger trigger :
+               TriggerRegistry.lookup(repository)) {
+            trigger.reconcile(pr);
+          }
+        }
+        OffsetDateTime updatedOn = parseTime(pr.getUpdatedOn());
+        if (updatedOn != null && updatedOn.isAfter(state.watermark)) {
+          state.watermark = updatedOn;
+          state.etag = null;
+        }
+      }
+      // Nothing new: the same request next time is likely not modified.
+      if (page == 1 && result.values.isEmpty()) {
+        state.etag = response.getEtag();
+      }
+      if (result.next == null) {
+        return;
+      }
+      response = client.getPage(result.next, null);
+    }
+  }
+
+  private static OffsetDateTime parseTime(String time) {
+    if (time == null) {
+      return null;
+    }
+    try {
+      return OffsetDateTime.parse(time);
+    } catch (DateTimeParseException e) {
+      LOGGER.log(Level.FINE, "Malformed time: {0}", time);
+      return null;
+    }
+  }
+
+  private static ApiClient getApiClient(String repository) {
+    for (BitbucketBuildTrigger trigger : TriggerRegistry.lookup(repository)) {
+      ApiClient client = trigger.getApiClient();
+      if (client != null) {
+        return client;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A page of pull requests returned by the API.
+   */
+  private static final class Page {
+    final List<PullRequest> values = new ArrayList<>();
+    String next;
+
+    static Page parse(String json) throws IOException {
+      Page page = new Page();
+      JsonParser parser = PullRequest.createParser(json);
+      try {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+          throw new JsonParseException("Expected an object",
+                                       parser.getCurrentLocation());
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          JsonToken token = parser.nextToken();
+          if ("next".equals(name) && token == JsonToken.VALUE_STRING) {
+            page.next = parser.getText();
+          } else if ("values".equals(name) &&
+                     token == JsonToken.START_ARRAY) {
+            readValues(parser, page.values);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } finally {
+        parser.close();
+      }
+      return page;
+    }
+
+    private static void readValues(JsonParser parser,
+                                   List<PullRequest> values)
+        throws IOException {
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        try {
+          values.add(PullRequest.read(parser));
+        } catch (JsonParseException e) {
+          // A pull request without needed fields is read through,
+          // skip only it. Malformed JSON fails the whole page.
+          if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+            throw e;
+          }
+          LOGGER.log(Level.FINE, "Skipping pull request: {0}",
+                     e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(PullRequestPoller.class.getName());
+}
@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueSorter;
+import hudson.model.queue.QueueTaskDispatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+
+/**
+ * Shares executors between repositories.
+ *
+ * Pull request builds wait in the queue while their repository or
+ * author has too many builds running, see the global configuration of
+ * the trigger. Buildable pull request builds are ordered by the priority
+ * given by the trigger of the job, then round-robin by destination
+ * repository, starting from the one waiting the longest, and the newest
+ * build of each repository goes first. Other queue items keep their
+ * positions.
+ */
+public final class PullRequestScheduler {
+  private PullRequestScheduler() {
+  }
+
+  private static BitbucketCause getCause(Queue.Item item) {
+    return PullRequestIndex.getCause(item.getCauses());
+  }
+
+  /**
+   * The priority is not kept with the queue item, so that it is not saved
+   * with the build, and follows changes of the rules.
+   */
+  private static int getPriority(Queue.Item item) {
+    BitbucketCause cause = getCause(item);
+    if (cause == null || !(item.task instanceof Job)) {
+      return 0;
+    }
+    BitbucketBuildTrigger trigger = ParameterizedJobMixIn.getTrigger(
+        (Job<?, ?>)item.task, BitbucketBuildTrigger.class);
+    return trigger == null ? 0 : trigger.getPriority(cause);
+  }
+
+  @Extension
+  public static final class QueueTaskDispatcherImpl
+      extends QueueTaskDispatcher {
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+      BitbucketCause cause = getCause(item);
+      Jenkins jenkins = Jenkins.getInstance();
+      if (cause == null || jenkins == null) {
+        return null;
+      }
+      BitbucketBuildTrigger.BitbucketBuildTriggerDescriptor descriptor =
+          jenkins.getDescriptorByType(
+              BitbucketBuildTrigger.BitbucketBuildTriggerDescriptor.class);
+      int maxRepository = descriptor.getMaxBuildsPerRepository();
+      int maxAuthor = descriptor.getMaxBuildsPerAuthor();
+      if (maxRepository <= 0 && maxAuthor <= 0) {
+        return null;
+      }
+
+      int repository = PullRequestIndex.countRunningByRepository(
+          cause.getDestinationRepository());
+      int author =
+          PullRequestIndex.countRunningByAuthor(cause.getPullRequestAuthor());
+      // Builds about to start: only those handed to executors in this
+      // round of the queue maintenance.
+      for (Queue.BuildableItem pending :
+           jenkins.getQueue().getPendingItems()) {
+        BitbucketCause c = getCause(pending);
+        if (c == null || pending.getId() == item.getId()) {
+          continue;
+        }
+        if (Objects.equals(c.getDestinationRepository(),
+                           cause.getDestinationRepository())) {
+          repository++;
+        }
+        if (Objects.equals(c.getPullRequestAuthor(),
+                           cause.getPullRequestAuthor())) {
+          author++;
+        }
+      }
+      if (maxRepository > 0 && repository >= maxRepository) {
+        return new Blocked(repository + " builds of " +
+                           cause.getDestinationRepository() +
+                           " are running");
+      }
+      if (maxAuthor > 0 && author >= maxAuthor) {
+        return new Blocked(author + " builds of pull requests by " +
+                           cause.getPullRequestAuthor() + " are running");
+      }
+      return null;
+    }
+  }
+
+  private static final class Blocked extends CauseOfBlockage {
+    private final String description;
+
+    Blocked(String description) {
+      this.description = description;
+    }
+
+    @Override
+    public String getShortDescription() {
+      return this.description;
+    }
+  }
+
+  /**
+   * Jenkins uses only one sorter: this one is installed if no other
+   * plugin installs its own.
+   */
+  @Extension
+  public static final class QueueSorterImpl extends QueueSorter {
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> items) {
+      List<Integer> slots = new ArrayList<>();
+      List<Queue.BuildableItem> builds = new ArrayList<>();
+      for (int i = 0; i < items.size(); i++) {
+        if (getCause(items.get(i)) != null) {
+          slots.add(i);
+          builds.add(items.get(i));
+        }
+      }
+      if (builds.size() < 2) {
+        return;
+      }
+
+      // Higher priority first, then repositories in the order of their
+      // longest waiting builds.
+      builds.sort(Comparator.comparingLong(Queue.Item::getInQueueSince));
+      Map<Integer, Map<String, Deque<Queue.BuildableItem>>> byPriority =
+          new TreeMap<>(Comparator.reverseOrder());
+      for (Queue.BuildableItem item : builds) {
+        // Newest first within the repository.
+        byPriority
+            .computeIfAbsent(getPriority(item), p -> new LinkedHashMap<>())
+            .computeIfAbsent(getCause(item).getDestinationRepository(),
+                             r -> new ArrayDeque<>())
+            .addFirst(item);
+      }
+
+      int slot = 0;
+      for (Map<String, Deque<Queue.BuildableItem>> byRepository :
+           byPriority.values()) {
+        while (!byRepository.isEmpty()) {
+          for (Iterator<Deque<Queue.BuildableItem>> it =
+                   byRepository.values().iterator();
+               it.hasNext();) {
+            Deque<Queue.BuildableItem> queue = it.next();
+            items.set(slots.get(slot++), queue.removeFirst());
+            if (queue.isEmpty()) {
+              it.remove();
+            }
+          }
+        }
+      }
+    }
+  }
+}
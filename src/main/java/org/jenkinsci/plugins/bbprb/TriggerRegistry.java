@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.bbprb;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.triggers.Trigger;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
+/**
+ * Started triggers indexed by their destination repositories.
+ *
+ * The web-hook receiver uses it to find the triggers interested in
+ * an event without walking all the items of Jenkins. Triggers are
+ * found by exact repository names, and triggers with patterns by
+ * the repository's owner, so that only a few patterns are tried.
+ */
+public final class TriggerRegistry {
+  private static final ConcurrentMap<String, Set<BitbucketBuildTrigger>>
+      triggers = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Set<BitbucketBuildTrigger>>
+      byOwner = new ConcurrentHashMap<>();
+  // Triggers with patterns which may match any owner.
+  private static final Set<BitbucketBuildTrigger> anyOwner =
+      ConcurrentHashMap.newKeySet();
+
+  private TriggerRegistry() {
+  }
+
+  static void register(NameMatcher repositories,
+                       BitbucketBuildTrigger trigger) {
+    for (String repository : repositories.getNames()) {
+      LOGGER.log(Level.FINE, "Registering trigger for `{0}`", repository);
+      add(triggers, repository, trigger);
+    }
+    if (repositories.hasPatterns()) {
+      Set<String> owners = repositories.getOwners();
+      if (owners == null) {
+        anyOwner.add(trigger);
+      } else {
+        for (String owner : owners) {
+          add(byOwner, owner, trigger);
+        }
+      }
+    }
+  }
+
+  static void unregister(NameMatcher repositories,
+                         BitbucketBuildTrigger trigger) {
+    for (String repository : repositories.getNames()) {
+      LOGGER.log(Level.FINE, "Unregistering trigger for `{0}`", repository);
+      remove(triggers, repository, trigger);
+    }
+    Set<String> owners = repositories.getOwners();
+    if (owners != null) {
+      for (String owner : owners) {
+        remove(byOwner, owner, trigger);
+      }
+    }
+    anyOwner.remove(trigger);
+  }
+
+  private static void add(ConcurrentMap<String, Set<BitbucketBuildTrigger>> map,
+                          String key, BitbucketBuildTrigger trigger) {
+    map.compute(key, (k, set) -> {
+      if (set == null) {
+        set = ConcurrentHashMap.newKeySet();
+      }
+      set.add(trigger);
+      return set;
+    });
+  }
+
+  private static void remove(
+      ConcurrentMap<String, Set<BitbucketBuildTrigger>> map, String key,
+      BitbucketBuildTrigger trigger) {
+    map.computeIfPresent(key, (k, set) -> {
+      set.remove(trigger);
+      return set.isEmpty() ? null : set;
+    });
+  }
+
+  static Collection<BitbucketBuildTrigger> lookup(String repository) {
+    Set<BitbucketBuildTrigger> result = new LinkedHashSet<>();
+    Set<BitbucketBuildTrigger> exact = triggers.get(repository);
+    if (exact != null) {
+      result.addAll(exact);
+    }
+    int slash = repository.indexOf('/');
+    if (slash > 0) {
+      addMatching(result, byOwner.get(repository.substring(0, slash)),
+                  repository);
+    }
+    addMatching(result, anyOwner, repository);
+    return result;
+  }
+
+  /**
+   * @return the repositories which triggers have by exact names
+   */
+  static Set<String> getRepositories() {
+    return new LinkedHashSet<>(triggers.keySet());
+  }
+
+  private static void addMatching(Set<BitbucketBuildTrigger> result,
+                                  Set<BitbucketBuildTrigger> candidates,
+                                  String repository) {
+    if (candidates == null) {
+      return;
+    }
+    for (BitbucketBuildTrigger trigger : candidates) {
+      if (trigger.matchesRepository(repository)) {
+        result.add(trigger);
+      }
+    }
+  }
+
+  /**
+   * Jenkins stops the triggers of a deleted job, but make sure
+   * nothing is left behind.
+   */
+  @Extension
+  public static final class ItemListenerImpl extends ItemListener {
+    @Override
+    public void onDeleted(Item item) {
+      if (!(item instanceof ParameterizedJob)) {
+        return;
+      }
+      ParameterizedJob job = (ParameterizedJob)item;
+      for (Trigger<?> trigger : job.getTriggers().values()) {
+        if (trigger instanceof BitbucketBuildTrigger) {
+          ((BitbucketBuildTrigger)trigger).stop();
+        }
+      }
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(TriggerRegistry.class.getName());
+}
@@ -6,26 +6,43 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.type.TypeFactory;
 import org.codehaus.jackson.type.JavaType;
 import org.codehaus.jackson.type.TypeReference;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 import hudson.ProxyConfiguration;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
 
-import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
 import org.apache.commons.httpclient.util.EncodingUtil;
 
 /**
@@ -34,22 +51,87 @@ import org.apache.commons.httpclient.util.EncodingUtil;
 public class ApiClient {
   private static final Logger logger =
       Logger.getLogger(ApiClient.class.getName());
-  private static final String V2_API_BASE_URL =
-      "https://bitbucket.org/api/2.0/repositories/";
   private static final String COMPUTED_KEY_FORMAT = "%s-%s";
-  private Credentials credentials;
-  private String key;
-  private String name;
-  private HttpClientFactory factory;
+  final ApiClientCache.Account account;
+  private final Endpoint endpoint;
+  private final Credentials credentials;
+  private final String key;
+  private final String name;
+  private final HttpClientFactory factory;
+  private final RateLimiter rateLimiter;
+
+  // Computed status keys by keyEx, which is the job's full name,
+  // so there are as many as jobs using this client.
+  private final ConcurrentMap<String, String> statusKeys =
+      new ConcurrentHashMap<>();
 
   public static final byte MAX_KEY_SIZE_BB_API = 40;
 
+  // Requests per second and the burst size allowed per account.
+  private static final double RATE = Double.parseDouble(System.getProperty(
+      ApiClient.class.getName() + ".rate", "5"));
+  private static final int BURST =
+      Integer.getInteger(ApiClient.class.getName() + ".burst", 50);
+
+  // Requests made on behalf of build listeners and web-hooks run here,
+  // so that those never wait for Bitbucket. Updates of the same status
+  // always go to the same thread to keep them in order.
+  private static final ExecutorService[] executors =
+      new ExecutorService[HttpClientFactory.INSTANCE
+                              .getMaxConnectionsPerHost()];
+  static {
+    for (int i = 0; i < executors.length; i++) {
+      executors[i] = Executors.newSingleThreadExecutor(
+          new NamingThreadFactory(new DaemonThreadFactory(), "bbprb-api"));
+    }
+  }
+
+  // Look-ups for triggers run here, apart from the status updates, which
+  // they would hold up. When all threads are busy and the queue is full,
+  // builds start without the result.
+  private static final int LOOKUP_THREADS =
+      Integer.getInteger(ApiClient.class.getName() + ".lookupThreads", 2);
+  private static final int LOOKUP_QUEUE_SIZE = Integer.getInteger(
+      ApiClient.class.getName() + ".lookupQueueSize", 100);
+  private static final ThreadPoolExecutor lookups = new ThreadPoolExecutor(
+      LOOKUP_THREADS, LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(LOOKUP_QUEUE_SIZE),
+      new NamingThreadFactory(new DaemonThreadFactory(), "bbprb-lookup"));
+  static {
+    lookups.allowCoreThreadTimeOut(true);
+  }
+
   public static class HttpClientFactory {
+    private static final int DEFAULT_TIMEOUT =
+        Integer.getInteger(ApiClient.class.getName() + ".timeout", 60000);
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(
+        ApiClient.class.getName() + ".connectTimeout", 10000);
+    private static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger(
+        ApiClient.class.getName() + ".maxConnectionsPerHost", 8);
+    private static final int MAX_CONNECTIONS = Integer.getInteger(
+        ApiClient.class.getName() + ".maxConnections", 32);
     public static final HttpClientFactory INSTANCE = new HttpClientFactory();
-    private static final int DEFAULT_TIMEOUT = 60000;
+
+    // Shared by all the clients, so that connections are kept alive
+    // and reused.
+    private final MultiThreadedHttpConnectionManager connectionManager;
+
+    public HttpClientFactory() {
+      this.connectionManager = new MultiThreadedHttpConnectionManager();
+      HttpConnectionManagerParams params = this.connectionManager.getParams();
+      params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+      params.setMaxTotalConnections(MAX_CONNECTIONS);
+      params.setConnectionTimeout(CONNECT_TIMEOUT);
+      params.setSoTimeout(DEFAULT_TIMEOUT);
+      params.setStaleCheckingEnabled(true);
+    }
+
+    public int getMaxConnectionsPerHost() {
+      return MAX_CONNECTIONS_PER_HOST;
+    }
 
     public HttpClient getInstanceHttpClient() {
-      HttpClient client = new HttpClient();
+      HttpClient client = new HttpClient(this.connectionManager);
 
       HttpClientParams params = client.getParams();
       params.setConnectionManagerTimeout(DEFAULT_TIMEOUT);
@@ -90,37 +172,61 @@ public class ApiClient {
 
   public <T extends HttpClientFactory>
   ApiClient(String username, String password, String key, String name) {
-    this.credentials = new UsernamePasswordCredentials(username, password);
+    this(Endpoint.CLOUD, new ApiClientCache.Account(username, password), key,
+         name);
+  }
+
+  /**
+   * Clients of the same account share the rate limit,
+   * see {@link ApiClientCache}.
+   */
+  ApiClient(Endpoint endpoint, ApiClientCache.Account account, String key,
+            String name) {
+    this.endpoint = endpoint;
+    this.account = account;
+    this.credentials =
+        new UsernamePasswordCredentials(account.username, account.password);
     this.key = key;
     this.name = name;
     this.factory = HttpClientFactory.INSTANCE;
+    this.rateLimiter = account.rateLimiter;
+  }
+
+  static RateLimiter newRateLimiter() {
+    return new RateLimiter(RATE, BURST);
   }
 
   public String getName() {
     return this.name;
   }
 
-  private static MessageDigest SHA1 = null;
+  public Endpoint getEndpoint() {
+    return this.endpoint;
+  }
 
   /**
-   * Retrun
    * @param keyExPart
    * @return key parameter for call BitBucket API
    */
   private String computeAPIKey(String keyExPart) {
+    return this.statusKeys.computeIfAbsent(keyExPart, this::hashAPIKey);
+  }
+
+  /**
+   * Computes the key bypassing the cache of {@link #computeAPIKey(String)}.
+   */
+  String hashAPIKey(String keyExPart) {
     String computedKey =
         String.format(COMPUTED_KEY_FORMAT, this.key, keyExPart);
 
     if (computedKey.length() > MAX_KEY_SIZE_BB_API) {
       try {
-        if (SHA1 == null)
-          SHA1 = MessageDigest.getInstance("SHA1");
-        return new String(
-            Hex.encodeHex(SHA1.digest(computedKey.getBytes("UTF-8"))));
+        // MessageDigest is not thread-safe, and creating one is cheap.
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        return new String(Hex.encodeHex(
+            sha1.digest(computedKey.getBytes(StandardCharsets.UTF_8))));
       } catch (NoSuchAlgorithmException e) {
         logger.log(Level.WARNING, "Failed to create hash provider", e);
-      } catch (UnsupportedEncodingException e) {
-        logger.log(Level.WARNING, "Failed to create hash provider", e);
       }
     }
     return (computedKey.length() <= MAX_KEY_SIZE_BB_API)
@@ -132,60 +238,320 @@ public class ApiClient {
     return this.computeAPIKey(bsKey);
   }
 
-  public void setBuildStatus(String repository, String revision,
-                             BuildState state, String buildUrl, String comment,
-                             String keyEx) {
-    String url = v2(repository + "/commit/" + revision + "/statuses/build");
+  public Response setBuildStatus(String repository, String revision,
+                                 BuildState state, String buildUrl,
+                                 String comment, String keyEx) {
     String computedKey = this.computeAPIKey(keyEx);
-    NameValuePair[] data = new NameValuePair[] {
-        new NameValuePair("description", comment),
-        new NameValuePair("key", computedKey),
-        new NameValuePair("name", this.name),
-        new NameValuePair("state", state.toString()),
-        new NameValuePair("url", buildUrl),
-    };
+    PostMethod req = this.endpoint.newBuildStatusRequest(
+        repository, revision, state, computedKey, this.name, buildUrl,
+        comment);
+    String path = req.getPath();
+    long start = System.nanoTime();
+    Response response = send(req);
+    Metrics.STATUS_POST.observeSince(start);
+    Metrics.STATUS_RESPONSES.inc(response.toString());
     logger.log(Level.FINE,
                "POST state {0} to {1} with key {2} with response {3}",
-               new Object[] {state, url, computedKey, post(url, data)});
+               new Object[] {state, path, computedKey, response});
+    return response;
   }
 
-  private HttpClient getHttpClient() {
-    return this.factory.getInstanceHttpClient();
+  public Future<Response> setBuildStatusAsync(final String repository,
+                                       final String revision,
+                                       final BuildState state,
+                                       final String buildUrl,
+                                       final String comment,
+                                       final String keyEx) {
+    return getExecutor(repository + revision + keyEx).submit(() -> {
+      return setBuildStatus(repository, revision, state, buildUrl, comment,
+                            keyEx);
+    });
   }
 
-  private String v2(String path) {
-    return V2_API_BASE_URL + path;
+  private static ExecutorService getExecutor(String key) {
+    return executors[(key.hashCode() & Integer.MAX_VALUE) % executors.length];
   }
 
-  private String post(String path, NameValuePair[] data) {
-    PostMethod req = new PostMethod(path);
-    req.setRequestBody(data);
-    req.getParams().setContentCharset("utf-8");
+  /**
+   * Lists open pull requests to the repository updated after the given
+   * time, the least recently updated first.
+   *
+   * @param updatedAfter ISO 8601 time, or null for all open pull requests
+   * @param etag of the previous response to the same request, or null;
+   *     the response is 304 Not Modified if nothing has changed
+   * @return a failed response if the endpoint does not support listing
+   *     of pull requests
+   */
+  public Response getPullRequests(String repository, String updatedAfter,
+                                  String etag) {
+    String url = this.endpoint.getPullRequestsUrl(repository);
+    if (url == null) {
+      logger.log(Level.FINE, "Listing pull requests is not supported by {0}",
+                 this.endpoint);
+      return new Response(0, null, -1, null);
+    }
+    String query = "state = \"OPEN\"";
+    if (updatedAfter != null) {
+      query += " AND updated_on > " + updatedAfter;
+    }
+    GetMethod req = new GetMethod(url);
+    req.setQueryString(new NameValuePair[] {
+        new NameValuePair("q", query),
+        new NameValuePair("sort", "updated_on"),
+        new NameValuePair("pagelen", "50"),
+    });
+    return get(req, etag);
+  }
+
+  /**
+   * @return the hash of the best common ancestor of the commits, or null
+   *     if it is not known
+   */
+  public String getMergeBase(String repository, String commit,
+                             String other) {
+    String url = this.endpoint.getMergeBaseUrl(repository, commit, other);
+    if (url == null) {
+      return null;
+    }
+    JsonNode result = readTree(get(new GetMethod(url), null));
+    if (result == null || !result.path("hash").isTextual()) {
+      return null;
+    }
+    return result.path("hash").getTextValue();
+  }
+
+  /**
+   * @param limit the number of commits to count at most
+   * @return the number of commits reachable from the commit and not from
+   *     the excluded one, or -1 if there are more than the limit or if
+   *     it is not known
+   */
+  public int countCommits(String repository, String commit, String exclude,
+                          int limit) {
+    String url = this.endpoint.getCommitsUrl(repository, commit, exclude);
+    if (url == null) {
+      return -1;
+    }
+    GetMethod req = new GetMethod(url);
+    req.setQueryString(req.getQueryString() + "&pagelen=" + limit +
+                       "&fields=values.hash,next");
+    JsonNode result = readTree(get(req, null));
+    if (result == null || result.has("next") ||
+        !result.path("values").isArray()) {
+      return -1;
+    }
+    return result.path("values").size();
+  }
+
+  /**
+   * Looks up the merge base of the pull request and counts its commits
+   * on a look-up thread, so that the caller does not wait for Bitbucket.
+   * The merge base is looked up in the destination repository, and for
+   * pull requests from forks also in the source repository, which has
+   * the destination commit if the fork is up to date.
+   *
+   * @param limit the number of commits to count at most
+   * @return the future merge base, completed with null if it is not known
+   */
+  public CompletableFuture<MergeBase> getMergeBaseAsync(
+      final String destinationRepository, final String sourceRepository,
+      final String source, final String destination, final int limit) {
+    try {
+      return CompletableFuture.supplyAsync(() -> {
+        String hash =
+            getMergeBase(destinationRepository, source, destination);
+        if (hash == null && !destinationRepository.equals(sourceRepository)) {
+          hash = getMergeBase(sourceRepository, source, destination);
+        }
+        if (hash == null) {
+          return null;
+        }
+        return new MergeBase(
+            hash, countCommits(sourceRepository, source, hash, limit));
+      }, lookups);
+    } catch (RejectedExecutionException e) {
+      logger.log(Level.WARNING, "Too many look-ups, skipping merge base of " +
+                                    sourceRepository + "@" + source);
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  /**
+   * The best common ancestor of the commits of a pull request.
+   */
+  public static final class MergeBase {
+    private final String hash;
+    private final int commits;
+
+    MergeBase(String hash, int commits) {
+      this.hash = hash;
+      this.commits = commits;
+    }
+
+    public String getHash() {
+      return this.hash;
+    }
+
+    /**
+     * @return the number of commits of the pull request, or -1 if it is
+     *     not known
+     */
+    public int getCommits() {
+      return this.commits;
+    }
+  }
+
+  private static JsonNode readTree(Response response) {
+    if (!response.isSuccessful() || response.getBody() == null) {
+      return null;
+    }
+    try {
+      return new ObjectMapper().readTree(response.getBody());
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Malformed response", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param url the `next` link of a page returned by the API
+   * @return a failed response if the link leads outside of the endpoint,
+   *     the credentials are not sent there
+   */
+  public Response getPage(String url, String etag) {
+    if (!this.endpoint.isSameOrigin(url)) {
+      logger.log(Level.WARNING, "Not following {0} outside of {1}",
+                 new Object[] {url, this.endpoint});
+      return new Response(0, null, -1, null);
+    }
+    return get(new GetMethod(url), etag);
+  }
+
+  private Response get(GetMethod req, String etag) {
+    if (etag != null) {
+      req.setRequestHeader("If-None-Match", etag);
+    }
     return send(req);
   }
 
-  private String send(HttpMethodBase req) {
+  private HttpClient getHttpClient() {
+    return this.factory.getInstanceHttpClient();
+  }
+
+  private Response send(HttpMethodBase req) {
     HttpClient client = getHttpClient();
     client.getState().setCredentials(AuthScope.ANY, credentials);
     client.getParams().setAuthenticationPreemptive(true);
     try {
+      this.rateLimiter.acquire();
       int statusCode = client.executeMethod(req);
+      long retryAfter = retryAfter(req.getResponseHeader("Retry-After"));
+      if (retryAfter > 0) {
+        this.rateLimiter.pause(retryAfter);
+      }
+      Header etag = req.getResponseHeader("ETag");
       switch (statusCode) {
         case HttpStatus.SC_OK:
-          return req.getResponseBodyAsString();
+          return new Response(statusCode, req.getResponseBodyAsString(),
+                              retryAfter,
+                              etag == null ? null : etag.getValue());
         case HttpStatus.SC_CREATED:
+        case HttpStatus.SC_NOT_MODIFIED:
           break;
         default:
           logger.log(Level.WARNING, "Response status: " + req.getStatusLine() +
                                         " URI: " + req.getURI());
       }
+      return new Response(statusCode, null, retryAfter, null);
     } catch (HttpException e) {
       logger.log(Level.WARNING, "Failed to send request.", e);
     } catch (IOException e) {
       logger.log(Level.WARNING, "Failed to send request.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } finally {
       req.releaseConnection();
     }
-    return null;
+    return new Response(0, null, -1, null);
+  }
+
+  /**
+   * @return milliseconds, or -1 if the header is missing or malformed
+   */
+  private static long retryAfter(Header header) {
+    if (header == null) {
+      return -1;
+    }
+    String value = header.getValue().trim();
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      try {
+        long date = DateUtil.parseDate(value).getTime();
+        return Math.max(0, date - System.currentTimeMillis());
+      } catch (DateParseException de) {
+        logger.log(Level.FINE, "Malformed Retry-After: {0}", value);
+        return -1;
+      }
+    }
+  }
+
+  public static final class Response {
+    private final int status;
+    private final String body;
+    private final long retryAfter;
+    private final String etag;
+
+    Response(int status, String body, long retryAfter, String etag) {
+      this.status = status;
+      this.body = body;
+      this.retryAfter = retryAfter;
+      this.etag = etag;
+    }
+
+    /**
+     * @return HTTP status code, or 0 if the request failed
+     */
+    public int getStatus() {
+      return this.status;
+    }
+
+    public String getBody() {
+      return this.body;
+    }
+
+    /**
+     * @return milliseconds to wait before retrying, or -1 if not known
+     */
+    public long getRetryAfter() {
+      return this.retryAfter;
+    }
+
+    /**
+     * @return the ETag header of a successful response, or null
+     */
+    public String getEtag() {
+      return this.etag;
+    }
+
+    public boolean isNotModified() {
+      return this.status == HttpStatus.SC_NOT_MODIFIED;
+    }
+
+    public boolean isSuccessful() {
+      return this.status >= 200 && this.status < 300;
+    }
+
+    /**
+     * Network errors, rate limiting and server errors are worth retrying.
+     */
+    public boolean isRetryable() {
+      return this.status == 0 || this.status == 429 || this.status >= 500;
+    }
+
+    @Override
+    public String toString() {
+      return this.status == 0 ? "none" : String.valueOf(this.status);
+    }
   }
 }
@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * API clients shared by the jobs using the same credentials.
+ *
+ * Credentials are looked up once for all the jobs using the same
+ * Bitbucket instance: the first lookup reads all username/password
+ * credentials, later lookups use the result until a credentials store,
+ * a folder or a user is saved, or for a few minutes at most, for stores
+ * changed by other means. Clients of the same credentials share the rate
+ * limit, also after the credentials are read again, and all the clients
+ * share the connections.
+ */
+public final class ApiClientCache {
+  // Seconds to use credentials read before looking them up again.
+  private static final int MAX_AGE = Integer.getInteger(
+      ApiClientCache.class.getName() + ".maxAge", 300);
+
+  // Accounts by credentials ID, by the URI of the Bitbucket instance.
+  private static final ConcurrentMap<String, Accounts> accounts =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, ApiClient> clients =
+      new ConcurrentHashMap<>();
+  // Rate limits by credentials ID, kept when credentials are read again.
+  private static final ConcurrentMap<String, RateLimiter> rateLimiters =
+      new ConcurrentHashMap<>();
+
+  private static final class Accounts {
+    final Map<String, Account> byId;
+    final long expires;
+
+    Accounts(Map<String, Account> byId, long expires) {
+      this.byId = byId;
+      this.expires = expires;
+    }
+  }
+
+  private ApiClientCache() {
+  }
+
+  /**
+   * @param key the key of build statuses
+   * @param name the name of build statuses
+   * @return the client, or null if there are no such credentials
+   */
+  public static ApiClient get(Endpoint endpoint, String credentialsId,
+                              String key, String name) {
+    if (credentialsId == null || credentialsId.isEmpty()) {
+      return null;
+    }
+    Account account =
+        getAccounts(endpoint.getCredentialsUri()).get(credentialsId);
+    if (account == null) {
+      return null;
+    }
+    String clientKey =
+        endpoint + "\n" + credentialsId + "\n" + key + "\n" + name;
+    ApiClient client = clients.get(clientKey);
+    if (client == null || client.account != account) {
+      client = new ApiClient(endpoint, account, key, name);
+      clients.put(clientKey, client);
+    }
+    return client;
+  }
+
+  /**
+   * Forgets all the credentials and clients, so that the next lookup
+   * reads the credentials again. Rate limits are kept.
+   */
+  public static synchronized void invalidate() {
+    LOGGER.log(Level.FINE, "Credentials changed, dropping API clients");
+    accounts.clear();
+    clients.clear();
+  }
+
+  private static Map<String, Account> getAccounts(String uri) {
+    Accounts result = accounts.get(uri);
+    if (result != null && result.expires - System.nanoTime() > 0) {
+      return result.byId;
+    }
+    synchronized (ApiClientCache.class) {
+      result = accounts.get(uri);
+      if (result == null || result.expires - System.nanoTime() <= 0) {
+        Map<String, Account> byId = new HashMap<>();
+        for (StandardUsernamePasswordCredentials c :
+             CredentialsProvider.lookupCredentials(
+                 StandardUsernamePasswordCredentials.class, (Item)null,
+                 ACL.SYSTEM, URIRequirementBuilder.fromUri(uri).build())) {
+          if (!byId.containsKey(c.getId())) {
+            byId.put(c.getId(), new Account(
+                c.getUsername(), c.getPassword().getPlainText(),
+                rateLimiters.computeIfAbsent(
+                    c.getId(), id -> ApiClient.newRateLimiter())));
+          }
+        }
+        LOGGER.log(Level.FINE, "Found {0} credentials for {1}",
+                   new Object[] {byId.size(), uri});
+        result = new Accounts(
+            byId, System.nanoTime() + TimeUnit.SECONDS.toNanos(MAX_AGE));
+        accounts.put(uri, result);
+      }
+      return result.byId;
+    }
+  }
+
+  /**
+   * Credentials and the rate limit shared by clients.
+   */
+  static final class Account {
+    final String username;
+    final String password;
+    final RateLimiter rateLimiter;
+
+    Account(String username, String password) {
+      this(username, password, ApiClient.newRateLimiter());
+    }
+
+    Account(String username, String password, RateLimiter rateLimiter) {
+      this.username = username;
+      this.password = password;
+      this.rateLimiter = rateLimiter;
+    }
+  }
+
+  /**
+   * Credentials stores are saved by themselves, as the global one,
+   * or with their folder or user.
+   */
+  @Extension
+  public static final class CredentialsListener extends SaveableListener {
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (o instanceof SystemCredentialsProvider ||
+          o instanceof CredentialsStore || o instanceof ItemGroup ||
+          o instanceof User) {
+        invalidate();
+      }
+    }
+  }
+
+  /**
+   * Credentials of a deleted folder are gone with it.
+   */
+  @Extension
+  public static final class FolderListener extends ItemListener {
+    @Override
+    public void onDeleted(Item item) {
+      if (item instanceof ItemGroup) {
+        invalidate();
+      }
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(ApiClientCache.class.getName());
+}
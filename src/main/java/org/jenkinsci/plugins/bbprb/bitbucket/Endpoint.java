@@ -0,0 +1,245 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * The URL layout of a Bitbucket instance: Bitbucket Cloud, possibly
+ * through a relay, or Bitbucket Server (Data Center).
+ */
+public abstract class Endpoint {
+  private static final String CLOUD_WEB_URL = "https://bitbucket.org/";
+  private static final String CLOUD_API_URL = "https://bitbucket.org/api/2.0/";
+
+  public static final Endpoint CLOUD = new Cloud(CLOUD_API_URL);
+
+  protected final String url;
+
+  private Endpoint(String url) {
+    this.url = url.endsWith("/") ? url : url + "/";
+  }
+
+  /**
+   * @param url the API URL of Bitbucket Cloud, e. g. of a relay, or
+   *     the URL of Bitbucket Server; empty means Bitbucket Cloud
+   * @param server whether the URL is of Bitbucket Server
+   */
+  public static Endpoint of(String url, boolean server) {
+    if (url == null || url.trim().isEmpty()) {
+      return CLOUD;
+    }
+    return server ? new Server(url.trim()) : new Cloud(url.trim());
+  }
+
+  /**
+   * @return the URI to look up credentials for
+   */
+  public abstract String getCredentialsUri();
+
+  /**
+   * @return the web page of the pull request
+   */
+  public abstract String getPullRequestUrl(String repository, String id);
+
+  /**
+   * @return the URL listing pull requests, or null if the API is
+   *     not supported
+   */
+  abstract String getPullRequestsUrl(String repository);
+
+  /**
+   * @return the URL of the merge base of the commits, or null if the API
+   *     is not supported
+   */
+  abstract String getMergeBaseUrl(String repository, String commit,
+                                  String other);
+
+  /**
+   * @return the URL listing commits of the commit not reachable from
+   *     the excluded one, or null if the API is not supported
+   */
+  abstract String getCommitsUrl(String repository, String commit,
+                                String exclude);
+
+  /**
+   * @return true if the URL has the scheme, host and port of the endpoint,
+   *     so that the credentials of the endpoint may be sent to it
+   */
+  boolean isSameOrigin(String other) {
+    try {
+      URI uri = new URI(this.url);
+      URI otherUri = new URI(other);
+      return uri.getScheme().equalsIgnoreCase(otherUri.getScheme()) &&
+          uri.getHost() != null &&
+          uri.getHost().equalsIgnoreCase(otherUri.getHost()) &&
+          getPort(uri) == getPort(otherUri);
+    } catch (URISyntaxException e) {
+      return false;
+    }
+  }
+
+  private static int getPort(URI uri) {
+    if (uri.getPort() >= 0) {
+      return uri.getPort();
+    }
+    return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+  }
+
+  abstract PostMethod newBuildStatusRequest(String repository,
+                                            String revision,
+                                            BuildState state, String key,
+                                            String name, String buildUrl,
+                                            String description);
+
+  @Override
+  public boolean equals(Object o) {
+    return o != null && o.getClass() == getClass() &&
+        this.url.equals(((Endpoint)o).url);
+  }
+
+  @Override
+  public int hashCode() {
+    return this.url.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " " + this.url;
+  }
+
+  /**
+   * Bitbucket Cloud API 2.0, the URL is of the API.
+   */
+  private static final class Cloud extends Endpoint {
+    Cloud(String url) {
+      super(url);
+    }
+
+    @Override
+    public String getCredentialsUri() {
+      // Relays use the credentials of Bitbucket Cloud.
+      return CLOUD_WEB_URL;
+    }
+
+    @Override
+    public String getPullRequestUrl(String repository, String id) {
+      return CLOUD_WEB_URL + repository + "/pull-requests/" + id;
+    }
+
+    @Override
+    String getPullRequestsUrl(String repository) {
+      return this.url + "repositories/" + repository + "/pullrequests";
+    }
+
+    @Override
+    String getMergeBaseUrl(String repository, String commit, String other) {
+      return this.url + "repositories/" + repository + "/merge-base/" +
+          commit + ".." + other;
+    }
+
+    @Override
+    String getCommitsUrl(String repository, String commit, String exclude) {
+      return this.url + "repositories/" + repository + "/commits/" + commit +
+          "?exclude=" + exclude;
+    }
+
+    @Override
+    PostMethod newBuildStatusRequest(String repository, String revision,
+                                     BuildState state, String key,
+                                     String name, String buildUrl,
+                                     String description) {
+      PostMethod req = new PostMethod(this.url + "repositories/" + repository +
+                                      "/commit/" + revision +
+                                      "/statuses/build");
+      req.setRequestBody(new NameValuePair[] {
+          new NameValuePair("description", description),
+          new NameValuePair("key", key),
+          new NameValuePair("name", name),
+          new NameValuePair("state", state.toString()),
+          new NameValuePair("url", buildUrl),
+      });
+      req.getParams().setContentCharset("utf-8");
+      return req;
+    }
+  }
+
+  /**
+   * Bitbucket Server build status API 1.0, the URL is of the server.
+   * Repositories are named `PROJECT/repository`.
+   */
+  private static final class Server extends Endpoint {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    Server(String url) {
+      super(url);
+    }
+
+    @Override
+    public String getCredentialsUri() {
+      return this.url;
+    }
+
+    @Override
+    public String getPullRequestUrl(String repository, String id) {
+      int slash = repository.indexOf('/');
+      return this.url + "projects/" + repository.substring(0, slash + 1) +
+          "repos/" + repository.substring(slash + 1) + "/pull-requests/" +
+          id + "/overview";
+    }
+
+    @Override
+    String getPullRequestsUrl(String repository) {
+      // The API of Bitbucket Server lists pull requests differently.
+      return null;
+    }
+
+    @Override
+    String getMergeBaseUrl(String repository, String commit, String other) {
+      return null;
+    }
+
+    @Override
+    String getCommitsUrl(String repository, String commit, String exclude) {
+      return null;
+    }
+
+    @Override
+    PostMethod newBuildStatusRequest(String repository, String revision,
+                                     BuildState state, String key,
+                                     String name, String buildUrl,
+                                     String description) {
+      // Statuses belong to commits regardless of repositories.
+      PostMethod req = new PostMethod(
+          this.url + "rest/build-status/1.0/commits/" + revision);
+      StringWriter body = new StringWriter();
+      try {
+        JsonGenerator g = FACTORY.createJsonGenerator(body);
+        g.writeStartObject();
+        // There is no state of stopped builds in Bitbucket Server.
+        g.writeStringField("state", state == BuildState.STOPPED
+                                        ? BuildState.FAILED.toString()
+                                        : state.toString());
+        g.writeStringField("key", key);
+        g.writeStringField("name", name);
+        g.writeStringField("url", buildUrl);
+        if (description != null) {
+          g.writeStringField("description", description);
+        }
+        g.writeEndObject();
+        g.close();
+        req.setRequestEntity(new StringRequestEntity(
+            body.toString(), "application/json", "utf-8"));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return req;
+    }
+  }
+}
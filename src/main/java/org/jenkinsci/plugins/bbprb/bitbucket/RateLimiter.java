@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of requests to Bitbucket API.
+ *
+ * Besides the steady rate, the bucket can be paused for a while,
+ * e. g. when Bitbucket responds with Retry-After.
+ */
+final class RateLimiter {
+  private final double permitsPerNano;
+  private final double burst;
+  private double tokens;
+  private long refilled;
+  private long pausedUntil;
+
+  RateLimiter(double permitsPerSecond, int burst) {
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = Math.max(1, burst);
+    this.tokens = this.burst;
+    this.refilled = System.nanoTime();
+    this.pausedUntil = this.refilled;
+  }
+
+  /**
+   * Blocks until a request is allowed.
+   */
+  void acquire() throws InterruptedException {
+    long wait;
+    while ((wait = tryAcquire()) > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Allows no requests for the given time.
+   */
+  synchronized void pause(long millis) {
+    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+    }
+  }
+
+  /**
+   * @return 0 if a token is taken, otherwise nanoseconds to wait
+   */
+  private synchronized long tryAcquire() {
+    long now = System.nanoTime();
+    if (pausedUntil - now > 0) {
+      return pausedUntil - now;
+    }
+    tokens = Math.min(burst, tokens + (now - refilled) * permitsPerNano);
+    refilled = now;
+    if (tokens >= 1) {
+      tokens -= 1;
+      return 0;
+    }
+    return Math.max(1, (long)((1 - tokens) / permitsPerNano));
+  }
+}
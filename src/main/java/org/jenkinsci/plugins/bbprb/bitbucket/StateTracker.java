@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The last build status acknowledged by Bitbucket for each repository,
+ * revision and status key.
+ *
+ * Updates which would not change the acknowledged status are not sent.
+ * Only the most recently used statuses are kept.
+ */
+final class StateTracker {
+  private static final int MAX_SIZE =
+      Integer.getInteger(StateTracker.class.getName() + ".maxSize", 10000);
+
+  static final StateTracker INSTANCE = new StateTracker();
+
+  private final Map<String, State> states =
+      new LinkedHashMap<String, State>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+          return size() > MAX_SIZE;
+        }
+      };
+
+  private StateTracker() {
+  }
+
+  /**
+   * @param key identifies the repository, revision and status key
+   * @return true if Bitbucket already has exactly this status
+   */
+  synchronized boolean isAcknowledged(String key, BuildState state,
+                                      String url, String comment) {
+    State last = states.get(key);
+    return last != null && last.state == state &&
+        Objects.equals(last.url, url) &&
+        Objects.equals(last.comment, comment);
+  }
+
+  /**
+   * Records the status after Bitbucket has accepted it.
+   */
+  synchronized void acknowledge(String key, BuildState state, String url,
+                                String comment) {
+    states.put(key, new State(state, url, comment));
+  }
+
+  synchronized int size() {
+    return states.size();
+  }
+
+  private static final class State {
+    private final BuildState state;
+    private final String url;
+    private final String comment;
+
+    State(BuildState state, String url, String comment) {
+      this.state = state;
+      this.url = url;
+      this.comment = comment;
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bbprb.metrics.Metrics;
+
+/**
+ * Build status updates waiting to be sent to Bitbucket.
+ *
+ * Updates are keyed by repository, revision and status key. Only the
+ * latest pending update of each key is sent, and an update identical
+ * to the one last acknowledged by Bitbucket is dropped, see
+ * {@link StateTracker}, unless an older update of the key is pending
+ * or being sent. Pending updates are sent in batches by a background
+ * thread.
+ *
+ * Updates failed because of network errors, rate limiting or server
+ * errors are retried with exponential backoff. Pending updates are
+ * saved to disk, so that they are not lost when Jenkins restarts.
+ */
+public final class StatusOutbox {
+  private static final long FLUSH_INTERVAL =
+      Long.getLong(StatusOutbox.class.getName() + ".flushInterval", 1000);
+  private static final int MAX_PENDING =
+      Integer.getInteger(StatusOutbox.class.getName() + ".maxPending", 10000);
+  private static final int MAX_ATTEMPTS =
+      Integer.getInteger(StatusOutbox.class.getName() + ".maxAttempts", 10);
+  private static final long MIN_BACKOFF = 1000;
+  private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+  public static final StatusOutbox INSTANCE = start(new StatusOutbox());
+
+  private final ConcurrentMap<Key, Update> pending = new ConcurrentHashMap<>();
+  // Updates being sent. An update is put here before it is removed from
+  // pending, and removed after its response is handled.
+  private final ConcurrentMap<Key, Update> inFlight = new ConcurrentHashMap<>();
+
+  // Saved updates whose jobs have not started yet after restart.
+  private List<Entry> parked = null;
+  private volatile boolean dirty = false;
+
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong retriedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /**
+   * An outbox without the background thread, which is flushed
+   * by the caller.
+   */
+  StatusOutbox() {
+  }
+
+  private static StatusOutbox start(StatusOutbox outbox) {
+    ScheduledExecutorService worker =
+        Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(
+            new DaemonThreadFactory(), "bbprb-outbox"));
+    worker.scheduleWithFixedDelay(() -> {
+      try {
+        outbox.flush();
+      } catch (RuntimeException e) {
+        // Never let the worker die.
+        LOGGER.log(Level.WARNING, "Failed to flush build statuses", e);
+      }
+    }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    Metrics.gauge("bbprb_status_pending", "Build statuses waiting to be sent",
+                  outbox::getPendingCount);
+    Metrics.counter("bbprb_status_sent_total", "Build statuses sent",
+                    outbox::getSentCount);
+    Metrics.counter("bbprb_status_retried_total",
+                    "Build statuses scheduled to be sent again",
+                    outbox::getRetriedCount);
+    Metrics.counter("bbprb_status_dropped_total",
+                    "Build statuses dropped after failures or overflow",
+                    outbox::getDroppedCount);
+    return outbox;
+  }
+
+  public void offer(ApiClient client, String repository, String revision,
+                    BuildState state, String buildUrl, String comment,
+                    String keyEx) {
+    Key key = new Key(repository, revision, client.buildStatusKey(keyEx));
+    Update update = new Update(client, new Entry(repository, revision, state,
+                                                 buildUrl, comment, keyEx, 0),
+                               0);
+    // The acknowledged state is outdated by an older update which is
+    // not acknowledged yet, e. g. INPROGRESS of a new build.
+    if (!pending.containsKey(key) && !inFlight.containsKey(key) &&
+        StateTracker.INSTANCE.isAcknowledged(key.toString(), state, buildUrl,
+                                             comment)) {
+      LOGGER.log(Level.FINE, "Status {0} of {1} is already acknowledged",
+                 new Object[] {state, key});
+      return;
+    }
+    if (pending.size() >= MAX_PENDING && !pending.containsKey(key)) {
+      droppedCount.incrementAndGet();
+      LOGGER.log(Level.WARNING, "Too many pending statuses, dropped {0} of {1}",
+                 new Object[] {state, key});
+      return;
+    }
+    Update previous = pending.put(key, update);
+    if (previous != null) {
+      LOGGER.log(Level.FINE, "Status {0} of {1} replaced by {2}",
+                 new Object[] {previous.entry.state, key, state});
+    }
+  }
+
+  /**
+   * Puts saved updates of the job back to the queue.
+   *
+   * @param keyEx the job's full name, as given to
+   *     {@link #offer(ApiClient, String, String, BuildState, String, String,
+   *     String)}
+   */
+  public void resume(ApiClient client, String keyEx) {
+    synchronized (this) {
+      Iterator<Entry> it = getParked().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (!entry.keyEx.equals(keyEx)) {
+          continue;
+        }
+        it.remove();
+        dirty = true;
+        Key key = new Key(entry.repository, entry.revision,
+                          client.buildStatusKey(keyEx));
+        LOGGER.log(Level.FINE, "Resuming status {0} of {1}",
+                   new Object[] {entry.state, key});
+        pending.putIfAbsent(key, new Update(client, entry, 0));
+      }
+    }
+  }
+
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  public long getRetriedCount() {
+    return retriedCount.get();
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Sends the pending updates which are due.
+   */
+  void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Map<Key, Update> batch = new LinkedHashMap<>();
+    Map<Key, Future<ApiClient.Response>> futures = new LinkedHashMap<>();
+    for (Map.Entry<Key, Update> e : pending.entrySet()) {
+      Key key = e.getKey();
+      Update update = e.getValue();
+      if (update.notBefore > now) {
+        continue;
+      }
+      inFlight.put(key, update);
+      if (!pending.remove(key, update)) {
+        inFlight.remove(key, update);
+        continue;
+      }
+      Entry entry = update.entry;
+      batch.put(key, update);
+      futures.put(key, update.client.setBuildStatusAsync(
+                           entry.repository, entry.revision, entry.state,
+                           entry.buildUrl, entry.comment, entry.keyEx));
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    LOGGER.log(Level.FINE, "Sending {0} build statuses", batch.size());
+    try {
+      handleResponses(batch, futures, now);
+    } finally {
+      for (Map.Entry<Key, Update> e : batch.entrySet()) {
+        inFlight.remove(e.getKey(), e.getValue());
+      }
+    }
+    if (dirty) {
+      save();
+    }
+  }
+
+  /**
+   * Acknowledges, retries or drops the sent updates.
+   */
+  private void handleResponses(Map<Key, Update> batch,
+                               Map<Key, Future<ApiClient.Response>> futures,
+                               long now) {
+    // Wait for the whole batch, so that updates of the same key
+    // are never sent out of order.
+    for (Map.Entry<Key, Future<ApiClient.Response>> e : futures.entrySet()) {
+      Key key = e.getKey();
+      Update update = batch.get(key);
+      ApiClient.Response response;
+      try {
+        response = e.getValue().get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException ee) {
+        LOGGER.log(Level.WARNING, "Failed to send build status", ee);
+        response = null;
+      }
+      if (update.entry.attempts > 0) {
+        dirty = true;
+      }
+      if (response != null && response.isSuccessful()) {
+        StateTracker.INSTANCE.acknowledge(key.toString(), update.entry.state,
+                                          update.entry.buildUrl,
+                                          update.entry.comment);
+        sentCount.incrementAndGet();
+        continue;
+      }
+      if ((response == null || response.isRetryable()) &&
+          update.entry.attempts + 1 < MAX_ATTEMPTS) {
+        long delay = response != null && response.getRetryAfter() > 0
+                         ? response.getRetryAfter()
+                         : backoff(update.entry.attempts);
+        // A newer update of the same key, if any, wins.
+        if (pending.putIfAbsent(key, update.retry(now + delay)) == null) {
+          retriedCount.incrementAndGet();
+          dirty = true;
+          LOGGER.log(Level.FINE, "Will retry status {0} of {1} in {2} ms",
+                     new Object[] {update.entry.state, key, delay});
+        }
+      } else {
+        droppedCount.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Dropped status {0} of {1}, response: {2}",
+                   new Object[] {update.entry.state, key, response});
+      }
+    }
+  }
+
+  /**
+   * Exponential backoff with jitter.
+   */
+  private static long backoff(int attempts) {
+    long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempts, 20));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  private synchronized List<Entry> getParked() {
+    if (parked == null) {
+      parked = new ArrayList<>();
+      XmlFile file = getConfigFile();
+      if (file != null && file.exists()) {
+        try {
+          Entry[] entries = (Entry[])file.read();
+          Collections.addAll(parked, entries);
+          LOGGER.log(Level.INFO, "Loaded {0} pending build statuses",
+                     entries.length);
+        } catch (IOException | ClassCastException e) {
+          LOGGER.log(Level.WARNING, "Failed to load pending build statuses", e);
+        }
+      }
+    }
+    return parked;
+  }
+
+  private synchronized void save() {
+    XmlFile file = getConfigFile();
+    if (file == null) {
+      return;
+    }
+    dirty = false;
+    List<Entry> entries = new ArrayList<>(getParked());
+    for (Update update : pending.values()) {
+      entries.add(update.entry);
+    }
+    if (entries.size() > MAX_PENDING) {
+      entries = entries.subList(entries.size() - MAX_PENDING, entries.size());
+    }
+    try {
+      if (entries.isEmpty()) {
+        file.delete();
+      } else {
+        file.write(entries.toArray(new Entry[entries.size()]));
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save pending build statuses", e);
+    }
+  }
+
+  @Terminator
+  public static void shutdown() {
+    INSTANCE.save();
+  }
+
+  private static XmlFile getConfigFile() {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+    return new XmlFile(Jenkins.XSTREAM, new File(jenkins.getRootDir(),
+                                                 StatusOutbox.class.getName() +
+                                                     ".xml"));
+  }
+
+  private static final class Key {
+    private final String repository;
+    private final String revision;
+    private final String statusKey;
+
+    Key(String repository, String revision, String statusKey) {
+      this.repository = repository;
+      this.revision = revision;
+      this.statusKey = statusKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return Objects.equals(repository, k.repository) &&
+          Objects.equals(revision, k.revision) &&
+          Objects.equals(statusKey, k.statusKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repository, revision, statusKey);
+    }
+
+    @Override
+    public String toString() {
+      return repository + "@" + revision + "/" + statusKey;
+    }
+  }
+
+  private static final class Update {
+    private final ApiClient client;
+    private final Entry entry;
+    private final long notBefore;
+
+    Update(ApiClient client, Entry entry, long notBefore) {
+      this.client = client;
+      this.entry = entry;
+      this.notBefore = notBefore;
+    }
+
+    Update retry(long notBefore) {
+      Entry e = new Entry(entry.repository, entry.revision, entry.state,
+                          entry.buildUrl, entry.comment, entry.keyEx,
+                          entry.attempts + 1);
+      return new Update(client, e, notBefore);
+    }
+  }
+
+  /**
+   * Persistent part of an update.
+   */
+  private static final class Entry {
+    private final String repository;
+    private final String revision;
+    private final BuildState state;
+    private final String buildUrl;
+    private final String comment;
+    private final String keyEx;
+    private final int attempts;
+
+    Entry(String repository, String revision, BuildState state,
+          String buildUrl, String comment, String keyEx, int attempts) {
+      this.repository = repository;
+      this.revision = revision;
+      this.state = state;
+      this.buildUrl = buildUrl;
+      this.comment = comment;
+      this.keyEx = keyEx;
+      this.attempts = attempts;
+    }
+  }
+
+  private static final Logger LOGGER =
+      Logger.getLogger(StatusOutbox.class.getName());
+}
@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.bbprb.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter, optionally split by the value of a label,
+ * e. g. by HTTP status.
+ */
+public final class Counter extends Metric {
+  private final String label;
+  private final ConcurrentMap<String, LongAdder> values =
+      new ConcurrentHashMap<>();
+
+  Counter(String name, String help, String label) {
+    super(name, help, "counter");
+    this.label = label;
+  }
+
+  public void inc() {
+    inc("");
+  }
+
+  public void inc(String value) {
+    values.computeIfAbsent(value, v -> new LongAdder()).increment();
+  }
+
+  public long get(String value) {
+    LongAdder n = values.get(value);
+    return n == null ? 0 : n.sum();
+  }
+
+  @Override
+  void writeSamples(StringBuilder out) {
+    if (label == null) {
+      out.append(name).append(' ').append(get("")).append('\n');
+      return;
+    }
+    for (Map.Entry<String, LongAdder> e : new TreeMap<>(values).entrySet()) {
+      out.append(name).append('{').append(label).append("=\"")
+          .append(escape(e.getKey())).append("\"} ")
+          .append(e.getValue().sum()).append('\n');
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.bbprb.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations over fixed buckets, from a millisecond
+ * to a minute. Recording does not lock.
+ */
+public final class Histogram extends Metric {
+  private static final double[] BUCKETS = {
+      0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+      1, 2.5, 5, 10, 30, 60};
+
+  private final long[] bounds = new long[BUCKETS.length];
+  private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+  private final LongAdder sum = new LongAdder();
+
+  Histogram(String name, String help) {
+    super(name, help, "histogram");
+    for (int i = 0; i < BUCKETS.length; i++) {
+      bounds[i] = (long)(BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param nanos the duration in nanoseconds
+   */
+  public void observe(long nanos) {
+    int i = 0;
+    while (i < bounds.length && nanos > bounds[i]) {
+      i++;
+    }
+    counts[i].increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * Records the time since the given {@link System#nanoTime()}.
+   */
+  public void observeSince(long start) {
+    observe(System.nanoTime() - start);
+  }
+
+  @Override
+  void writeSamples(StringBuilder out) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS.length; i++) {
+      total += counts[i].sum();
+      out.append(name).append("_bucket{le=\"").append(BUCKETS[i])
+          .append("\"} ").append(total).append('\n');
+    }
+    total += counts[BUCKETS.length].sum();
+    out.append(name).append("_bucket{le=\"+Inf\"} ").append(total)
+        .append('\n');
+    out.append(name).append("_sum ")
+        .append(sum.sum() / (double)TimeUnit.SECONDS.toNanos(1)).append('\n');
+    out.append(name).append("_count ").append(total).append('\n');
+  }
+}
@@ -0,0 +1,24 @@
+package org.jenkinsci.plugins.bbprb.metrics;
+
+/**
+ * A named metric written in the Prometheus text format.
+ */
+abstract class Metric {
+  final String name;
+  final String help;
+  final String type;
+
+  Metric(String name, String help, String type) {
+    this.name = name;
+    this.help = help;
+    this.type = type;
+  }
+
+  final void write(StringBuilder out) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    writeSamples(out);
+  }
+
+  abstract void writeSamples(StringBuilder out);
+}
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.bbprb.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of the whole pipeline: from receiving a web-hook to sending
+ * the build status to Bitbucket.
+ *
+ * These are exposed at `bbprb-hook/metrics` in the Prometheus text
+ * format.
+ */
+public final class Metrics {
+  private static final List<Metric> REGISTRY = new CopyOnWriteArrayList<>();
+
+  public static final Histogram HOOK_RECEIVE =
+      histogram("bbprb_hook_receive_seconds",
+                "Time to receive, parse and accept a web-hook delivery");
+  public static final Histogram HOOK_PARSE =
+      histogram("bbprb_hook_parse_seconds",
+                "Time to read and parse a web-hook payload");
+  public static final Counter HOOK_RESPONSES =
+      counter("bbprb_hook_responses_total",
+              "Web-hook deliveries by response status", "status");
+  public static final Counter EVENTS_DROPPED =
+      counter("bbprb_events_dropped_total",
+              "Pull request events not handled, by reason", "reason");
+  public static final Histogram EVENT_LATENCY =
+      histogram("bbprb_event_latency_seconds",
+                "Time from accepting an event to the end of its handling");
+  public static final Counter TRIGGER_MATCHES =
+      counter("bbprb_trigger_matches_total",
+              "Triggers pull request events were dispatched to");
+  public static final Counter CANCELLATIONS =
+      counter("bbprb_cancellations_total",
+              "Outdated builds cancelled, by where they were", "where");
+  public static final Histogram BUILD_QUEUE =
+      histogram("bbprb_build_queue_seconds",
+                "Time pull request builds spend in the build queue");
+  public static final Histogram STATUS_POST =
+      histogram("bbprb_status_post_seconds",
+                "Time to send a build status to Bitbucket, including " +
+                    "waiting for the rate limit");
+  public static final Counter STATUS_RESPONSES =
+      counter("bbprb_status_responses_total",
+              "Build status requests by response status", "status");
+
+  private Metrics() {
+  }
+
+  private static <T extends Metric> T register(T metric) {
+    REGISTRY.add(metric);
+    return metric;
+  }
+
+  private static Histogram histogram(String name, String help) {
+    return register(new Histogram(name, help));
+  }
+
+  private static Counter counter(String name, String help) {
+    return register(new Counter(name, help, null));
+  }
+
+  private static Counter counter(String name, String help, String label) {
+    return register(new Counter(name, help, label));
+  }
+
+  /**
+   * Registers a value kept elsewhere, which may go up and down.
+   */
+  public static void gauge(String name, String help, LongSupplier value) {
+    register(new Sampled(name, help, "gauge", value));
+  }
+
+  /**
+   * Registers a monotonic value kept elsewhere.
+   */
+  public static void counter(String name, String help, LongSupplier value) {
+    register(new Sampled(name, help, "counter", value));
+  }
+
+  public static void write(Writer out) throws IOException {
+    StringBuilder s = new StringBuilder();
+    for (Metric metric : REGISTRY) {
+      metric.write(s);
+    }
+    out.write(s.toString());
+    out.flush();
+  }
+
+  private static final class Sampled extends Metric {
+    private final LongSupplier value;
+
+    Sampled(String name, String help, String type, LongSupplier value) {
+      super(name, help, type);
+      this.value = value;
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+      out.append(name).append(' ').append(value.getAsLong()).append('\n');
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DeliveryCacheTest {
+  @Test
+  public void rejectsKeySeenWithinWindow() {
+    DeliveryCache cache = new DeliveryCache(60000, 100);
+    assertTrue(cache.add("a"));
+    assertFalse(cache.add("a"));
+    assertTrue(cache.add("b"));
+  }
+
+  @Test
+  public void acceptsKeyAgainAfterRemove() {
+    DeliveryCache cache = new DeliveryCache(60000, 100);
+    assertTrue(cache.add("a"));
+    cache.remove("a");
+    assertTrue(cache.add("a"));
+    assertFalse(cache.add("a"));
+  }
+
+  @Test
+  public void acceptsKeyAgainAfterWindow() throws Exception {
+    DeliveryCache cache = new DeliveryCache(50, 100);
+    assertTrue(cache.add("a"));
+    Thread.sleep(100);
+    assertTrue(cache.add("a"));
+    assertFalse(cache.add("a"));
+  }
+
+  @Test
+  public void boundsNumberOfKeys() {
+    DeliveryCache cache = new DeliveryCache(60000, 100);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(cache.add("key" + i));
+      assertTrue(cache.size() <= 100);
+    }
+  }
+
+  @Test
+  public void purgesExpiredKeysFirst() throws Exception {
+    DeliveryCache cache = new DeliveryCache(50, 100);
+    for (int i = 0; i < 100; i++) {
+      cache.add("old" + i);
+    }
+    Thread.sleep(100);
+    cache.add("new0");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void acceptsKeyOnceAcrossThreads() throws Exception {
+    DeliveryCache cache = new DeliveryCache(60000, 100000);
+    int threads = 8;
+    int keys = 10000;
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger accepted = new AtomicInteger();
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < keys; i++) {
+          if (cache.add("key" + i)) {
+            accepted.incrementAndGet();
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(keys, accepted.get());
+  }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GlobTest {
+  private static boolean matches(String glob, String name) {
+    return Glob.compile(glob).matcher(name).matches();
+  }
+
+  @Test
+  public void matchesExactly() {
+    assertTrue(matches("master", "master"));
+    assertFalse(matches("master", "master2"));
+    assertFalse(matches("master", "a-master"));
+  }
+
+  @Test
+  public void matchesAnyCharacters() {
+    assertTrue(matches("release/*", "release/1.0"));
+    assertTrue(matches("release/*", "release/"));
+    assertTrue(matches("release/*", "release/1.0/hotfix"));
+    assertTrue(matches("*", ""));
+    assertTrue(matches("*-fix", "bug-fix"));
+    assertTrue(matches("f*t*e", "feature"));
+    assertFalse(matches("release/*", "releases/1.0"));
+  }
+
+  @Test
+  public void matchesSingleCharacter() {
+    assertTrue(matches("v?", "v1"));
+    assertFalse(matches("v?", "v"));
+    assertFalse(matches("v?", "v10"));
+    assertTrue(matches("owner/?", "owner//"));
+  }
+
+  @Test
+  public void quotesOtherCharacters() {
+    assertTrue(matches("a.b", "a.b"));
+    assertFalse(matches("a.b", "axb"));
+    assertTrue(matches("[x](y)+", "[x](y)+"));
+    assertTrue(matches("^a$*", "^a$bc"));
+    assertTrue(matches("\\E*\\Q", "\\Eany\\Q"));
+  }
+}
@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A journal abandoned without marking its events as done is what
+ * Jenkins leaves behind when it crashes.
+ */
+public class HookJournalTest {
+  // Header, type and id of a record.
+  private static final int OVERHEAD = 4 + 4 + 1 + 8;
+  // Two of these do not fit into the default 4 MB segment.
+  private static final int LARGE = 3 * 1024 * 1024;
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    this.dir = this.tmp.newFolder("journal");
+  }
+
+  private File[] segments() {
+    File[] files = this.dir.listFiles((d, name) -> name.endsWith(".seg"));
+    Arrays.sort(files);
+    return files;
+  }
+
+  private static int size(String event, String body) {
+    return OVERHEAD +
+        (event + "\n" + body).getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  private static String large(char c) {
+    char[] chars = new char[LARGE];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  @Test
+  public void recoversEventsNotDone() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    long first = journal.accept("pullrequest:created", "{\"a\":1}");
+    long second = journal.accept("pullrequest:updated", "{\"b\":\"\u00e9\"}");
+    journal.done(first);
+
+    HookJournal recovered = new HookJournal(this.dir);
+    List<HookJournal.Entry> entries = recovered.drainUnfinished();
+    assertEquals(1, entries.size());
+    assertEquals(second, entries.get(0).id);
+    assertEquals("pullrequest:updated", entries.get(0).event);
+    assertEquals("{\"b\":\"\u00e9\"}", entries.get(0).body);
+    assertTrue(recovered.drainUnfinished().isEmpty());
+  }
+
+  @Test
+  public void recoversNothingWhenAllDone() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    journal.done(journal.accept("pullrequest:created", "{}"));
+    journal.done(journal.accept("pullrequest:updated", "{}"));
+
+    HookJournal recovered = new HookJournal(this.dir);
+    assertTrue(recovered.drainUnfinished().isEmpty());
+    // Only the new segment is left.
+    assertEquals(1, segments().length);
+  }
+
+  @Test
+  public void continuesIdsAfterRestart() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    journal.accept("pullrequest:created", "{}");
+    long last = journal.accept("pullrequest:created", "{}");
+    journal.done(last);
+
+    HookJournal recovered = new HookJournal(this.dir);
+    assertEquals(last + 1, recovered.accept("pullrequest:created", "{}"));
+  }
+
+  @Test
+  public void ignoresTruncatedRecord() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    journal.accept("pullrequest:created", "{\"a\":1}");
+    journal.accept("pullrequest:updated", "{\"b\":2}");
+    File segment = segments()[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(size("pullrequest:created", "{\"a\":1}") + OVERHEAD);
+    }
+
+    List<HookJournal.Entry> entries =
+        new HookJournal(this.dir).drainUnfinished();
+    assertEquals(1, entries.size());
+    assertEquals("{\"a\":1}", entries.get(0).body);
+  }
+
+  @Test
+  public void ignoresCorruptedRecord() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    journal.accept("pullrequest:created", "{\"a\":1}");
+    journal.accept("pullrequest:updated", "{\"b\":2}");
+    File segment = segments()[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      long position = size("pullrequest:created", "{\"a\":1}") + OVERHEAD;
+      file.seek(position);
+      byte b = file.readByte();
+      file.seek(position);
+      file.writeByte(b ^ 0xff);
+    }
+
+    HookJournal recovered = new HookJournal(this.dir);
+    List<HookJournal.Entry> entries = recovered.drainUnfinished();
+    assertEquals(1, entries.size());
+    assertEquals("{\"a\":1}", entries.get(0).body);
+
+    // The journal is still usable.
+    recovered.done(entries.get(0).id);
+    long id = recovered.accept("pullrequest:created", "{\"c\":3}");
+    entries = new HookJournal(this.dir).drainUnfinished();
+    assertEquals(1, entries.size());
+    assertEquals(id, entries.get(0).id);
+    assertEquals("{\"c\":3}", entries.get(0).body);
+  }
+
+  @Test
+  public void deletesSegmentOnceAllEventsDone() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    long first = journal.accept("pullrequest:created", large('a'));
+    long second = journal.accept("pullrequest:created", large('b'));
+    File[] files = segments();
+    assertEquals(2, files.length);
+
+    journal.done(second);
+    assertTrue(files[0].exists());
+    journal.done(first);
+    assertFalse(files[0].exists());
+    // The current segment is kept.
+    assertTrue(files[1].exists());
+  }
+
+  @Test
+  public void recoversDoneFromLaterSegment() throws Exception {
+    HookJournal journal = new HookJournal(this.dir);
+    long small = journal.accept("pullrequest:created", "{}");
+    long first = journal.accept("pullrequest:created", large('a'));
+    long second = journal.accept("pullrequest:created", large('b'));
+    // Marked as done in the second segment.
+    journal.done(first);
+    File[] files = segments();
+    assertEquals(2, files.length);
+
+    HookJournal recovered = new HookJournal(this.dir);
+    List<HookJournal.Entry> entries = recovered.drainUnfinished();
+    assertEquals(2, entries.size());
+    assertEquals(small, entries.get(0).id);
+    assertEquals(second, entries.get(1).id);
+
+    recovered.done(small);
+    assertFalse(files[0].exists());
+    assertTrue(files[1].exists());
+    recovered.done(second);
+    assertFalse(files[1].exists());
+    assertEquals(1, segments().length);
+  }
+
+  @Test
+  public void expiresEventsPendingTooLong() throws Exception {
+    HookJournal journal =
+        new HookJournal(this.dir, TimeUnit.MILLISECONDS.toNanos(200));
+    long lost = journal.accept("pullrequest:created", large('a'));
+    File[] files = segments();
+    Thread.sleep(400);
+    long second = journal.accept("pullrequest:created", large('b'));
+
+    // The lost event no longer keeps its segment.
+    assertFalse(files[0].exists());
+    journal.done(lost);
+    List<HookJournal.Entry> entries =
+        new HookJournal(this.dir).drainUnfinished();
+    assertEquals(1, entries.size());
+    assertEquals(second, entries.get(0).id);
+  }
+}
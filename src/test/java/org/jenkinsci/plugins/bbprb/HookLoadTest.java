@@ -0,0 +1,276 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertEquals;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.FreeStyleProject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import org.jenkinsci.plugins.bbprb.bitbucket.StubBitbucket;
+
+/**
+ * Drives web-hook deliveries against Jenkins with jobs sending build
+ * statuses to a local stub of Bitbucket, and reports throughput, latency
+ * of the deliveries and the number of status posts.
+ *
+ * The test runs only when enabled, and status posts are limited by
+ * the rate limit of the API client, which is lifted for capacity testing:
+ * {@code mvn test -Dtest=HookLoadTest
+ * -Dorg.jenkinsci.plugins.bbprb.HookLoadTest.enabled=true
+ * -Dorg.jenkinsci.plugins.bbprb.HookLoadTest.events=10000
+ * -Dorg.jenkinsci.plugins.bbprb.HookLoadTest.rate=200
+ * -Dorg.jenkinsci.plugins.bbprb.bitbucket.ApiClient.rate=100000}
+ */
+public class HookLoadTest {
+  private static final String PREFIX = HookLoadTest.class.getName();
+  // Jobs, each of its own repository.
+  private static final int JOBS = Integer.getInteger(PREFIX + ".jobs", 4);
+  // Open pull requests of each repository.
+  private static final int PULL_REQUESTS =
+      Integer.getInteger(PREFIX + ".pullRequests", 5);
+  private static final int EVENTS =
+      Integer.getInteger(PREFIX + ".events", 40);
+  // Concurrent deliveries.
+  private static final int THREADS =
+      Integer.getInteger(PREFIX + ".threads", 4);
+  // Deliveries per second, zero means as fast as possible.
+  private static final int RATE = Integer.getInteger(PREFIX + ".rate", 0);
+  // Seconds to wait for all the builds and statuses.
+  private static final int TIMEOUT =
+      Integer.getInteger(PREFIX + ".timeout", 120);
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private StubBitbucket bitbucket;
+
+  @BeforeClass
+  public static void checkEnabled() {
+    // Before the rule starts Jenkins.
+    Assume.assumeTrue(Boolean.getBoolean(PREFIX + ".enabled"));
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    this.bitbucket = new StubBitbucket();
+    SystemCredentialsProvider credentials =
+        SystemCredentialsProvider.getInstance();
+    credentials.getCredentials().add(new UsernamePasswordCredentialsImpl(
+        CredentialsScope.GLOBAL, "bitbucket", null, "user", "password"));
+    credentials.save();
+    this.j.jenkins.setNumExecutors(4);
+    for (int i = 0; i < JOBS; i++) {
+      FreeStyleProject project = this.j.createFreeStyleProject("load-" + i);
+      BitbucketBuildTrigger trigger = new BitbucketBuildTrigger(
+          "bitbucket", repository(i), "jenkins", "Jenkins", false);
+      trigger.setBitbucketUrl(this.bitbucket.getUrl());
+      project.addTrigger(trigger);
+      trigger.start(project, true);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    this.bitbucket.close();
+  }
+
+  @Test
+  public void handlesDeliveries() throws Exception {
+    URL hook = new URL(this.j.getURL(), "bbprb-hook/");
+    long[] latencies = new long[EVENTS];
+    ConcurrentMap<Integer, AtomicInteger> responses =
+        new ConcurrentHashMap<>();
+    AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = next.getAndIncrement(); i < EVENTS;
+             i = next.getAndIncrement()) {
+          // Latency counts from the scheduled time, so that a slow
+          // response delays the following deliveries in the measure.
+          long scheduled = RATE > 0
+              ? start + TimeUnit.SECONDS.toNanos(i) / RATE
+              : System.nanoTime();
+          long delay = scheduled - System.nanoTime();
+          if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+          }
+          int status = deliver(hook, i);
+          latencies[i] = System.nanoTime() - scheduled;
+          responses.computeIfAbsent(status, s -> new AtomicInteger())
+              .incrementAndGet();
+        }
+        return null;
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long sent = System.nanoTime() - start;
+
+    int accepted = count(responses, 202);
+    waitForSuccessfulStatuses(accepted);
+    long handled = System.nanoTime() - start;
+
+    Map<String, Integer> states = new TreeMap<>();
+    for (Map<String, String> status : this.bitbucket.getStatuses()) {
+      states.merge(status.get("state"), 1, Integer::sum);
+    }
+    Arrays.sort(latencies);
+    logger.info(String.format("Deliveries: %d in %d ms, %.1f per second",
+                              EVENTS, TimeUnit.NANOSECONDS.toMillis(sent),
+                              EVENTS * 1e9 / sent));
+    logger.info(String.format("Responses: %s", new TreeMap<>(responses)));
+    logger.info(String.format(
+        "Latency, ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+        percentile(latencies, 50), percentile(latencies, 90),
+        percentile(latencies, 99), percentile(latencies, 100)));
+    logger.info(String.format("Built and reported in %d ms",
+                              TimeUnit.NANOSECONDS.toMillis(handled)));
+    logger.info(String.format("Status posts: %d %s",
+                              this.bitbucket.getStatuses().size(), states));
+
+    // Deliveries are rejected only when the queue is full.
+    assertEquals(EVENTS, accepted + count(responses, 503));
+    assertEquals(accepted, (int)states.getOrDefault("SUCCESSFUL", 0));
+  }
+
+  private static String repository(int job) {
+    return "load/repo-" + job;
+  }
+
+  /**
+   * Delivers the i-th event: pull requests of the repositories in turn,
+   * each event with a new source commit. Every other event of
+   * a repository is sent as a form, as by web-hooks of older Bitbucket.
+   */
+  private static int deliver(URL hook, int i) throws IOException {
+    int job = i % JOBS;
+    int round = i / JOBS;
+    int id = round % PULL_REQUESTS + 1;
+    String event =
+        round < PULL_REQUESTS ? "pullrequest:created" : "pullrequest:updated";
+    String payload = payload(repository(job), id, String.format("%040x", i));
+    byte[] body;
+    String contentType;
+    if (round % 2 == 0) {
+      body = payload.getBytes(StandardCharsets.UTF_8);
+      contentType = "application/json";
+    } else {
+      body = ("payload=" + URLEncoder.encode(payload, "UTF-8"))
+                 .getBytes(StandardCharsets.UTF_8);
+      contentType = "application/x-www-form-urlencoded";
+    }
+    HttpURLConnection connection = (HttpURLConnection)hook.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+    connection.setRequestProperty("Content-Type", contentType);
+    connection.setRequestProperty("X-Event-Key", event);
+    connection.setRequestProperty("X-Request-UUID",
+                                  UUID.randomUUID().toString());
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    int status = connection.getResponseCode();
+    // Read the response through to keep the connection alive.
+    InputStream in = status < 400 ? connection.getInputStream()
+                                  : connection.getErrorStream();
+    if (in != null) {
+      try {
+        IOUtils.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    }
+    return status;
+  }
+
+  private static String payload(String repository, int id, String commit) {
+    return "{\"actor\":{\"display_name\":\"Load\"},"
+        + "\"pullrequest\":{\"id\":" + id + ","
+        + "\"title\":\"Load test #" + id + "\",\"state\":\"OPEN\","
+        + "\"author\":{\"display_name\":\"Load\"},"
+        + "\"source\":{\"branch\":{\"name\":\"feature-" + id + "\"},"
+        + "\"commit\":{\"hash\":\"" + commit + "\"},"
+        + "\"repository\":{\"full_name\":\"" + repository + "\"}},"
+        + "\"destination\":{\"branch\":{\"name\":\"master\"},"
+        + "\"commit\":{\"hash\":\"" + String.format("%040x", 0) + "\"},"
+        + "\"repository\":{\"full_name\":\"" + repository + "\"}},"
+        + "\"updated_on\":\"2018-01-02T03:04:05.678+00:00\"},"
+        + "\"repository\":{\"full_name\":\"" + repository + "\"}}";
+  }
+
+  /**
+   * Waits for the builds of the accepted events to complete and report
+   * their results. Earlier statuses of a commit may be superseded,
+   * the final ones are not.
+   */
+  private void waitForSuccessfulStatuses(int expected) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+    while (System.nanoTime() < deadline) {
+      int successful = 0;
+      for (Map<String, String> status : this.bitbucket.getStatuses()) {
+        if ("SUCCESSFUL".equals(status.get("state"))) {
+          successful++;
+        }
+      }
+      if (successful >= expected) {
+        return;
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  private static int count(Map<Integer, AtomicInteger> responses,
+                           int status) {
+    AtomicInteger count = responses.get(status);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * @return milliseconds
+   */
+  private static double percentile(long[] sorted, int percent) {
+    int index = (int)Math.ceil(sorted.length * percent / 100.0) - 1;
+    return sorted[Math.max(index, 0)] / 1e6;
+  }
+
+  private static final Logger logger =
+      Logger.getLogger(HookLoadTest.class.getName());
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class NameMatcherTest {
+  @Test
+  public void matchesNothingWhenEmpty() {
+    for (String spec : new String[] {null, "", " ,\n "}) {
+      NameMatcher matcher = new NameMatcher(spec);
+      assertTrue(matcher.isEmpty());
+      assertFalse(matcher.matches("owner/repo"));
+      assertTrue(matcher.matchesOrEmpty("owner/repo"));
+      assertFalse(matcher.hasPatterns());
+    }
+  }
+
+  @Test
+  public void matchesNames() {
+    NameMatcher matcher = new NameMatcher(" owner/app,owner/lib\nother/x ");
+    assertEquals(new HashSet<>(Arrays.asList("owner/app", "owner/lib",
+                                             "other/x")),
+                 matcher.getNames());
+    assertTrue(matcher.matches("owner/app"));
+    assertTrue(matcher.matches("other/x"));
+    assertFalse(matcher.matches("owner/ap"));
+    assertFalse(matcher.matches(null));
+    assertFalse(matcher.matchesOrEmpty("owner/other"));
+    assertFalse(matcher.hasPatterns());
+  }
+
+  @Test
+  public void matchesGlobs() {
+    NameMatcher matcher = new NameMatcher("owner/lib-*, owner/app");
+    assertTrue(matcher.matches("owner/lib-core"));
+    assertTrue(matcher.matches("owner/app"));
+    assertFalse(matcher.matches("other/lib-core"));
+    assertTrue(matcher.hasPatterns());
+    assertEquals(Collections.singleton("owner/app"), matcher.getNames());
+  }
+
+  @Test
+  public void matchesRegularExpressions() {
+    NameMatcher matcher = new NameMatcher("^(team|ops)/.*-svc$");
+    assertTrue(matcher.matches("team/auth-svc"));
+    assertTrue(matcher.matches("ops/log-svc"));
+    assertFalse(matcher.matches("dev/auth-svc"));
+    assertFalse(matcher.matches("team/auth-svc2"));
+  }
+
+  @Test
+  public void keepsCommasOfRegularExpressions() {
+    NameMatcher matcher =
+        new NameMatcher("owner/app,^team/(a|b){1,3}$, owner/lib,^x/y{2,}");
+    assertTrue(matcher.matches("team/ab"));
+    assertTrue(matcher.matches("team/bab"));
+    assertFalse(matcher.matches("team/abab"));
+    assertTrue(matcher.matches("x/yyy"));
+    assertFalse(matcher.matches("x/y"));
+    assertEquals(new HashSet<>(Arrays.asList("owner/app", "owner/lib")),
+                 matcher.getNames());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMalformedRegularExpression() {
+    new NameMatcher("owner/app ^owner/(app");
+  }
+
+  @Test
+  public void limitsGlobsToOwners() {
+    assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                 new NameMatcher("a/x-*, b/?, c/exact").getOwners());
+    assertEquals(Collections.emptySet(),
+                 new NameMatcher("a/exact").getOwners());
+  }
+
+  @Test
+  public void doesNotLimitPatternsOfAnyOwner() {
+    // The wildcard is in the owner.
+    assertNull(new NameMatcher("a/x-*, own*/x").getOwners());
+    assertNull(new NameMatcher("a/x-*, ?/x").getOwners());
+    // No owner at all.
+    assertNull(new NameMatcher("a/x-*, *").getOwners());
+    // Regular expressions may match anything.
+    assertNull(new NameMatcher("a/x-*, ^a/.*").getOwners());
+    assertNull(new NameMatcher("^a/.*, a/x-*").getOwners());
+  }
+}
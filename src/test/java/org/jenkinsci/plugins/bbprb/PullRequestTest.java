@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.bbprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.junit.Test;
+
+public class PullRequestTest {
+  private static final String PULL_REQUEST =
+      "{\"id\":42,\"title\":\"Fix \\\"it\\\"\",\"state\":\"OPEN\","
+      + "\"links\":{\"html\":{\"href\":\"https://example.com\"}},"
+      + "\"author\":{\"display_name\":\"Jane\",\"uuid\":\"{1}\"},"
+      + "\"participants\":[{\"role\":\"REVIEWER\",\"approved\":false}],"
+      + "\"source\":{\"branch\":{\"name\":\"feature\"},"
+      + "\"commit\":{\"hash\":\"aaaaaaa\",\"links\":{}},"
+      + "\"repository\":{\"full_name\":\"fork/repo\",\"name\":\"repo\"}},"
+      + "\"destination\":{\"branch\":{\"name\":\"master\"},"
+      + "\"commit\":{\"hash\":\"bbbbbbb\"},"
+      + "\"repository\":{\"full_name\":\"owner/repo\"}},"
+      + "\"updated_on\":\"2018-01-02T03:04:05.678+00:00\"}";
+
+  private static String payload(String pullRequest) {
+    return "{\"actor\":{\"display_name\":\"John\",\"links\":{}},"
+        + "\"pullrequest\":" + pullRequest + ","
+        + "\"repository\":{\"full_name\":\"owner/repo\"}}";
+  }
+
+  private static void assertFields(PullRequest pr) {
+    assertEquals("42", pr.getId());
+    assertEquals("Fix \"it\"", pr.getTitle());
+    assertEquals("Jane", pr.getAuthor());
+    assertEquals("feature", pr.getSourceBranch());
+    assertEquals("aaaaaaa", pr.getSourceCommitHash());
+    assertEquals("fork/repo", pr.getSourceRepository());
+    assertEquals("master", pr.getDestinationBranch());
+    assertEquals("bbbbbbb", pr.getDestinationCommitHash());
+    assertEquals("owner/repo", pr.getDestinationRepository());
+  }
+
+  @Test
+  public void parsesPayload() throws Exception {
+    PullRequest pr = PullRequest.parse(payload(PULL_REQUEST));
+    assertFields(pr);
+    assertEquals("2018-01-02T03:04:05.678+00:00", pr.getUpdatedOn());
+  }
+
+  @Test
+  public void parsesStream() throws Exception {
+    PullRequest pr = PullRequest.parse(new ByteArrayInputStream(
+        payload(PULL_REQUEST).getBytes(StandardCharsets.UTF_8)));
+    assertFields(pr);
+  }
+
+  @Test
+  public void ignoresRestOfPayload() throws Exception {
+    // Not even valid JSON after the pull request.
+    PullRequest pr =
+        PullRequest.parse("{\"pullrequest\":" + PULL_REQUEST + ",]]");
+    assertFields(pr);
+  }
+
+  @Test
+  public void allowsMissingTitle() throws Exception {
+    String title = "\"title\":\"Fix \\\"it\\\"\"";
+    PullRequest pr =
+        PullRequest.parse(payload(PULL_REQUEST.replace(title + ",", "")));
+    assertNull(pr.getTitle());
+    pr = PullRequest.parse(
+        payload(PULL_REQUEST.replace(title, "\"title\":null")));
+    assertNull(pr.getTitle());
+  }
+
+  @Test
+  public void roundTripsJson() throws Exception {
+    PullRequest pr = PullRequest.parse(PullRequest.parse(payload(PULL_REQUEST))
+                                           .toJson());
+    assertFields(pr);
+    assertNull(pr.getUpdatedOn());
+  }
+
+  @Test
+  public void readsEmbeddedPullRequest() throws Exception {
+    JsonParser parser =
+        PullRequest.createParser("[" + PULL_REQUEST + "," + PULL_REQUEST + "]");
+    assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+    assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+    assertFields(PullRequest.read(parser));
+    assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+    assertFields(PullRequest.read(parser));
+    assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+  }
+
+  @Test
+  public void readsEmbeddedPayload() throws Exception {
+    JsonParser parser = PullRequest.createParser(payload(PULL_REQUEST));
+    assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+    assertFields(PullRequest.readPayload(parser));
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void rejectsMissingPullRequest() throws Exception {
+    PullRequest.parse("{\"repository\":{\"full_name\":\"owner/repo\"}}");
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void rejectsMissingField() throws Exception {
+    PullRequest.parse(
+        payload(PULL_REQUEST.replace("\"hash\":\"aaaaaaa\",", "")));
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void rejectsNullField() throws Exception {
+    PullRequest.parse(payload(PULL_REQUEST.replace("\"Jane\"", "null")));
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void rejectsArray() throws Exception {
+    PullRequest.parse("[" + payload(PULL_REQUEST) + "]");
+  }
+
+  @Test(expected = JsonParseException.class)
+  public void rejectsTruncatedPayload() throws Exception {
+    String payload = payload(PULL_REQUEST);
+    PullRequest.parse(payload.substring(0, payload.indexOf("destination")));
+  }
+}
@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Build statuses set concurrently by many jobs sharing a client.
+ */
+public class ApiClientStressTest {
+  private static final int THREADS = 16;
+  private static final int REQUESTS = 40;
+  private static final int JOBS = 10;
+  private static final String URL_PREFIX = "http://jenkins/job/";
+
+  private StubBitbucket bitbucket;
+  private ApiClient client;
+  private final List<String> jobs = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    this.bitbucket = new StubBitbucket();
+    this.client = new ApiClient(
+        this.bitbucket.getEndpoint(),
+        new ApiClientCache.Account("user", "password",
+                                   new RateLimiter(100000, 100000)),
+        "jenkins", "Jenkins");
+    for (int i = 0; i < JOBS; i++) {
+      // Every other name is long enough to be hashed.
+      this.jobs.add(i % 2 == 0 ? "team/app-" + i
+                               : "team/folder/multibranch-project/PR-" + i +
+                                     "-with-a-long-branch-name");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    this.bitbucket.close();
+  }
+
+  @Test
+  public void postsEveryStatusWithItsKey() throws Exception {
+    AtomicInteger successful = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      tasks.add(() -> {
+        for (int i = 0; i < REQUESTS; i++) {
+          String job = this.jobs.get((thread + i) % JOBS);
+          ApiClient.Response response = this.client.setBuildStatus(
+              "owner/repo", "rev" + thread + "x" + i, BuildState.INPROGRESS,
+              URL_PREFIX + job + "/1/", null, job);
+          if (response.isSuccessful()) {
+            successful.incrementAndGet();
+          }
+        }
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(THREADS * REQUESTS, successful.get());
+    List<Map<String, String>> statuses = this.bitbucket.getStatuses();
+    assertEquals(THREADS * REQUESTS, statuses.size());
+    for (Map<String, String> status : statuses) {
+      String url = status.get("url");
+      String job = url.substring(URL_PREFIX.length(), url.length() - 3);
+      String key = status.get("key");
+      assertEquals(expectedKey(job), key);
+      assertEquals("Jenkins", status.get("name"));
+      assertEquals("INPROGRESS", status.get("state"));
+    }
+  }
+
+  /**
+   * Computes the key of a job the way Bitbucket expects it: the CI key
+   * and the job name, or SHA-1 of them if longer than 40 characters.
+   */
+  private static String expectedKey(String job) throws Exception {
+    String key = "jenkins-" + job;
+    if (key.length() <= 40) {
+      return key;
+    }
+    byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+        key.getBytes(StandardCharsets.UTF_8));
+    return String.format("%040x", new BigInteger(1, digest));
+  }
+}
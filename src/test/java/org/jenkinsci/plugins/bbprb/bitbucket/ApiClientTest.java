@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ApiClientTest {
+  private StubBitbucket bitbucket;
+
+  @Before
+  public void setUp() throws Exception {
+    this.bitbucket = new StubBitbucket();
+  }
+
+  @After
+  public void tearDown() {
+    this.bitbucket.close();
+  }
+
+  @Test
+  public void failsToListPullRequestsOfServer() {
+    ApiClient client = new ApiClient(
+        Endpoint.of(this.bitbucket.getUrl(), true),
+        new ApiClientCache.Account("user", "password"), "jenkins",
+        "Jenkins");
+    ApiClient.Response response =
+        client.getPullRequests("owner/repo", null, null);
+    assertFalse(response.isSuccessful());
+    assertFalse(response.isNotModified());
+    assertEquals(0, response.getStatus());
+  }
+
+  @Test
+  public void followsPagesOfEndpointOnly() {
+    ApiClient client = new ApiClient(
+        this.bitbucket.getEndpoint(),
+        new ApiClientCache.Account("user", "password"), "jenkins",
+        "Jenkins");
+    String page = "repositories/owner/repo/pullrequests?page=2";
+    // The stub responds 404 to pages.
+    assertEquals(404, client.getPage(this.bitbucket.getUrl() + page, null)
+                          .getStatus());
+    // The same server by another name is not followed.
+    String other = this.bitbucket.getUrl().replace("127.0.0.1", "localhost");
+    assertEquals(0, client.getPage(other + page, null).getStatus());
+    assertEquals(0, client.getPage("https://example.org/2.0/" + page, null)
+                        .getStatus());
+  }
+
+  @Test
+  public void looksUpUnknownMergeBase() throws Exception {
+    ApiClient client = new ApiClient(
+        this.bitbucket.getEndpoint(),
+        new ApiClientCache.Account("user", "password"), "jenkins",
+        "Jenkins");
+    // The stub knows no commits.
+    assertNull(client.getMergeBaseAsync("owner/repo", "fork/repo", "aaaaaaa",
+                                        "bbbbbbb", 100)
+                   .get(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RateLimiterTest {
+  // Slack for slow machines, the limiter never lets requests through early.
+  private static final long SLACK = 5;
+
+  private static long millis(long started) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+  }
+
+  @Test
+  public void allowsBurstAtOnce() throws Exception {
+    RateLimiter limiter = new RateLimiter(1, 5);
+    long started = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire();
+    }
+    assertTrue(millis(started) < 500);
+  }
+
+  @Test
+  public void waitsForTokenAfterBurst() throws Exception {
+    RateLimiter limiter = new RateLimiter(10, 1);
+    limiter.acquire();
+    long started = System.nanoTime();
+    limiter.acquire();
+    assertTrue(millis(started) >= 100 - SLACK);
+  }
+
+  @Test
+  public void keepsSteadyRate() throws Exception {
+    RateLimiter limiter = new RateLimiter(100, 1);
+    long started = System.nanoTime();
+    for (int i = 0; i < 51; i++) {
+      limiter.acquire();
+    }
+    // The first token is in the bucket already.
+    assertTrue(millis(started) >= 500 - SLACK);
+  }
+
+  @Test
+  public void keepsRateAcrossThreads() throws Exception {
+    RateLimiter limiter = new RateLimiter(100, 1);
+    limiter.acquire();
+    long started = System.nanoTime();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        try {
+          for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(millis(started) >= 400 - SLACK);
+  }
+
+  @Test
+  public void allowsNothingWhilePaused() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000, 10);
+    limiter.pause(200);
+    long started = System.nanoTime();
+    limiter.acquire();
+    assertTrue(millis(started) >= 200 - SLACK);
+  }
+
+  @Test
+  public void keepsLongerPause() throws Exception {
+    RateLimiter limiter = new RateLimiter(1000, 10);
+    limiter.pause(200);
+    limiter.pause(10);
+    long started = System.nanoTime();
+    limiter.acquire();
+    assertTrue(millis(started) >= 200 - SLACK);
+  }
+}
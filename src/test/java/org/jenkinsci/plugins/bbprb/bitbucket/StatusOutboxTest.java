@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusOutboxTest {
+  private StubBitbucket bitbucket;
+  private ApiClient client;
+  private StatusOutbox outbox;
+  // Statuses acknowledged by other tests must not match these ones.
+  private String revision;
+
+  @Before
+  public void setUp() throws Exception {
+    this.bitbucket = new StubBitbucket();
+    this.client = new ApiClient(
+        this.bitbucket.getEndpoint(),
+        new ApiClientCache.Account("user", "password",
+                                   new RateLimiter(1000, 1000)),
+        "jenkins", "Jenkins");
+    this.outbox = new StatusOutbox();
+    this.revision = UUID.randomUUID().toString().replace("-", "");
+  }
+
+  @After
+  public void tearDown() {
+    this.bitbucket.close();
+  }
+
+  private void offer(BuildState state, String url, String job) {
+    this.outbox.offer(this.client, "owner/repo", this.revision, state, url,
+                      null, job);
+  }
+
+  @Test
+  public void sendsOnlyTheLatestUpdateOfKey() {
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+    assertEquals(1, this.outbox.getPendingCount());
+
+    this.outbox.flush();
+
+    List<Map<String, String>> statuses = this.bitbucket.getStatuses();
+    assertEquals(1, statuses.size());
+    assertEquals("SUCCESSFUL", statuses.get(0).get("state"));
+    assertEquals("/2.0/repositories/owner/repo/commit/" + this.revision +
+                     "/statuses/build",
+                 statuses.get(0).get("path"));
+    assertEquals(0, this.outbox.getPendingCount());
+    assertEquals(1, this.outbox.getSentCount());
+  }
+
+  @Test
+  public void sendsUpdatesOfDifferentKeys() {
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+    offer(BuildState.INPROGRESS, "http://jenkins/job/b/1/", "b");
+
+    this.outbox.flush();
+
+    assertEquals(2, this.bitbucket.getStatuses().size());
+    assertEquals(2, this.outbox.getSentCount());
+  }
+
+  @Test
+  public void dropsUpdateAlreadyAcknowledged() {
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+    this.outbox.flush();
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+
+    assertEquals(0, this.outbox.getPendingCount());
+    this.outbox.flush();
+    assertEquals(1, this.bitbucket.getStatuses().size());
+  }
+
+  @Test
+  public void sendsAcknowledgedUpdateReplacingPendingOne() {
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+    this.outbox.flush();
+    // The job is built again with the same result.
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+
+    assertEquals(1, this.outbox.getPendingCount());
+    this.outbox.flush();
+    List<Map<String, String>> statuses = this.bitbucket.getStatuses();
+    assertEquals(2, statuses.size());
+    assertEquals("SUCCESSFUL", statuses.get(1).get("state"));
+  }
+
+  @Test
+  public void sendsAcknowledgedUpdateAfterOneInFlight() throws Exception {
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+    this.outbox.flush();
+    this.bitbucket.setDelay(500);
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+    Thread flush = new Thread(this.outbox::flush);
+    flush.start();
+    while (this.outbox.getPendingCount() > 0) {
+      Thread.sleep(10);
+    }
+    // INPROGRESS is being sent now.
+    offer(BuildState.SUCCESSFUL, "http://jenkins/job/a/1/", "a");
+    assertEquals(1, this.outbox.getPendingCount());
+    flush.join();
+
+    this.outbox.flush();
+    List<Map<String, String>> statuses = this.bitbucket.getStatuses();
+    assertEquals(3, statuses.size());
+    assertEquals("INPROGRESS", statuses.get(1).get("state"));
+    assertEquals("SUCCESSFUL", statuses.get(2).get("state"));
+  }
+
+  @Test
+  public void keepsFailedUpdateForRetry() {
+    this.bitbucket.setStatus(500);
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+
+    this.outbox.flush();
+
+    assertEquals(1, this.bitbucket.getStatuses().size());
+    assertEquals(1, this.outbox.getPendingCount());
+    assertEquals(1, this.outbox.getRetriedCount());
+    // Not due yet because of the backoff.
+    this.outbox.flush();
+    assertEquals(1, this.bitbucket.getStatuses().size());
+  }
+
+  @Test
+  public void dropsRejectedUpdate() {
+    this.bitbucket.setStatus(400);
+    offer(BuildState.INPROGRESS, "http://jenkins/job/a/1/", "a");
+
+    this.outbox.flush();
+
+    assertEquals(0, this.outbox.getPendingCount());
+    assertEquals(1, this.outbox.getDroppedCount());
+  }
+}
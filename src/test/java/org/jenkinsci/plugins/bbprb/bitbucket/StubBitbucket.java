@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.bbprb.bitbucket;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Bitbucket Cloud API on a local port. It records the build statuses
+ * it receives and responds with a given status code.
+ */
+public final class StubBitbucket implements AutoCloseable {
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newFixedThreadPool(16);
+  private final List<Map<String, String>> statuses =
+      Collections.synchronizedList(new ArrayList<>());
+  private volatile int status = 201;
+  private volatile long delay = 0;
+
+  public StubBitbucket() throws IOException {
+    this.server =
+        HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    this.server.createContext("/", this::handle);
+    this.server.setExecutor(this.executor);
+    this.server.start();
+  }
+
+  /**
+   * @return the API URL to give to {@link Endpoint#of(String, boolean)}
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + this.server.getAddress().getPort() +
+        "/2.0/";
+  }
+
+  public Endpoint getEndpoint() {
+    return Endpoint.of(getUrl(), false);
+  }
+
+  /**
+   * @param status HTTP status code of the following responses
+   */
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  /**
+   * @param delay milliseconds to wait before responding
+   */
+  public void setDelay(long delay) {
+    this.delay = delay;
+  }
+
+  /**
+   * @return form fields of the build statuses received, in order,
+   *     with the request path in `path`
+   */
+  public List<Map<String, String>> getStatuses() {
+    synchronized (this.statuses) {
+      return new ArrayList<>(this.statuses);
+    }
+  }
+
+  public void reset() {
+    this.statuses.clear();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = IOUtils.toByteArray(in);
+      }
+      if (this.delay > 0) {
+        TimeUnit.MILLISECONDS.sleep(this.delay);
+      }
+      if (!"POST".equals(exchange.getRequestMethod()) ||
+          !path.endsWith("/statuses/build")) {
+        respond(exchange, 404);
+        return;
+      }
+      Map<String, String> fields =
+          parseForm(new String(body, StandardCharsets.UTF_8));
+      fields.put("path", path);
+      this.statuses.add(fields);
+      respond(exchange, this.status);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 503);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status)
+      throws IOException {
+    byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, String> parseForm(String form)
+      throws IOException {
+    Map<String, String> fields = new HashMap<>();
+    for (String pair : form.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0) {
+        fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                   URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return fields;
+  }
+
+  @Override
+  public void close() {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+  }
+}